@@ -0,0 +1,110 @@
+package org.jruby.ext.stringio.benchmark;
+
+import org.jcodings.Encoding;
+import org.jcodings.specific.ASCIIEncoding;
+import org.jcodings.specific.UTF16LEEncoding;
+import org.jcodings.specific.UTF8Encoding;
+import org.jruby.Ruby;
+import org.jruby.RubyString;
+import org.jruby.ext.stringio.StringIO;
+import org.jruby.ext.stringio.StringIOLibrary;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.BlockCallback;
+import org.jruby.runtime.CallBlock;
+import org.jruby.runtime.Signature;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Shared setup for the StringIO JMH benchmarks: a runtime with the extension
+ * loaded, and sample content in each of the benchmarked encodings.
+ */
+final class BenchmarkSupport {
+    /**
+     * Every line ends with CRLF so the same buffer exercises "\n", "\r\n" and
+     * paragraph separators; every eighth line is followed by a blank line.
+     */
+    private static final String ASCII_LINE = "The quick brown fox jumps over the lazy dog 0123456789 abcdefghij\r\n";
+    private static final String BINARY_LINE = "Þ­¾ï binary payload ÿþ 0123456789 ABCDEFGHIJ\r\n";
+    private static final String UTF8_LINE = "Grüße aus Köln, naïve café 日本語テキスト ☃\r\n";
+
+    private BenchmarkSupport() {}
+
+    static Ruby newRuntime() {
+        Ruby runtime = Ruby.newInstance();
+        try {
+            new StringIOLibrary().load(runtime, false);
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe);
+        }
+        return runtime;
+    }
+
+    static Encoding encoding(String name) {
+        switch (name) {
+            case "ASCII-8BIT": return ASCIIEncoding.INSTANCE;
+            case "UTF-8": return UTF8Encoding.INSTANCE;
+            case "UTF-16LE": return UTF16LEEncoding.INSTANCE;
+            default: throw new IllegalArgumentException("unsupported encoding: " + name);
+        }
+    }
+
+    static Charset charset(String name) {
+        switch (name) {
+            case "ASCII-8BIT": return StandardCharsets.ISO_8859_1;
+            case "UTF-8": return StandardCharsets.UTF_8;
+            case "UTF-16LE": return StandardCharsets.UTF_16LE;
+            default: throw new IllegalArgumentException("unsupported encoding: " + name);
+        }
+    }
+
+    static String sampleLine(String encoding) {
+        return "ASCII-8BIT".equals(encoding) ? BINARY_LINE : "UTF-8".equals(encoding) ? UTF8_LINE : ASCII_LINE;
+    }
+
+    /**
+     * Fill exactly {@code size} bytes with sample lines. UTF-16 content uses
+     * plain ASCII lines so that the byte count always stays even.
+     */
+    static byte[] content(String encoding, int size) {
+        Charset charset = charset(encoding);
+        byte[] line = sampleLine(encoding).getBytes(charset);
+        byte[] blank = "\r\n".getBytes(charset);
+        byte[] bytes = new byte[size];
+
+        int pos = 0;
+        for (int lineno = 1; pos < size; lineno++) {
+            pos = fill(bytes, pos, line);
+            if (lineno % 8 == 0) pos = fill(bytes, pos, blank);
+        }
+
+        return bytes;
+    }
+
+    private static int fill(byte[] bytes, int pos, byte[] src) {
+        int len = Math.min(src.length, bytes.length - pos);
+        System.arraycopy(src, 0, bytes, pos, len);
+        return pos + len;
+    }
+
+    static RubyString newString(Ruby runtime, byte[] bytes, Encoding enc) {
+        return RubyString.newString(runtime, new ByteList(bytes, enc, false));
+    }
+
+    static RubyString newString(Ruby runtime, String str, String encoding) {
+        return newString(runtime, str.getBytes(charset(encoding)), encoding(encoding));
+    }
+
+    static StringIO newStringIO(ThreadContext context, IRubyObject string) {
+        return (StringIO) context.runtime.getClass("StringIO").newInstance(context, string, Block.NULL_BLOCK);
+    }
+
+    static Block block(ThreadContext context, BlockCallback callback) {
+        return CallBlock.newCallClosure(context.runtime.getTopSelf(), context.runtime.getObject(), Signature.ONE_ARGUMENT, callback, context);
+    }
+}
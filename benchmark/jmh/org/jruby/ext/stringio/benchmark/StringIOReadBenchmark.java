@@ -0,0 +1,210 @@
+package org.jruby.ext.stringio.benchmark;
+
+import org.jruby.Ruby;
+import org.jruby.RubyFixnum;
+import org.jruby.RubyIOBuffer;
+import org.jruby.RubyString;
+import org.jruby.ext.stringio.StringIO;
+import org.jruby.javasupport.JavaUtil;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read-side hot paths. Each benchmark operation drains the whole buffer from
+ * the start, so throughput in bytes is {@code size * ops}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class StringIOReadBenchmark {
+    @Param({"64", "4096", "1048576", "268435456"})
+    public int size;
+
+    @Param({"ASCII-8BIT", "UTF-8", "UTF-16LE"})
+    public String encoding;
+
+    private Ruby runtime;
+    private ThreadContext context;
+    private StringIO io;
+    private StringIO direct;
+    private RubyString lf;
+    private RubyString crlf;
+    private RubyString paragraph;
+    private RubyString outbuf;
+    private IRubyObject chunk;
+    private IRubyObject[] readIntoArgs;
+    private IRubyObject preadLength;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        runtime = BenchmarkSupport.newRuntime();
+        context = runtime.getCurrentContext();
+
+        byte[] content = BenchmarkSupport.content(encoding, size);
+        io = BenchmarkSupport.newStringIO(context, BenchmarkSupport.newString(runtime, content, BenchmarkSupport.encoding(encoding)));
+        ByteBuffer buffer = ByteBuffer.allocateDirect(content.length);
+        buffer.put(content).flip();
+        direct = BenchmarkSupport.newStringIO(context, JavaUtil.convertJavaToUsableRubyObject(runtime, buffer));
+        direct.set_encoding(context, runtime.newString(encoding));
+
+        lf = BenchmarkSupport.newString(runtime, "\n", encoding);
+        crlf = BenchmarkSupport.newString(runtime, "\r\n", encoding);
+        paragraph = RubyString.newEmptyString(runtime);
+        outbuf = RubyString.newString(runtime, new byte[8192]);
+        chunk = RubyFixnum.newFixnum(runtime, 8192);
+        readIntoArgs = new IRubyObject[] {RubyIOBuffer.newBuffer(runtime, 8192, RubyIOBuffer.INTERNAL)};
+        preadLength = RubyFixnum.newFixnum(runtime, 64);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        runtime.tearDown(false);
+    }
+
+    private int drainGets(IRubyObject separator, Blackhole bh) {
+        io.rewind(context);
+        int lines = 0;
+        IRubyObject line;
+        while (!(line = io.gets(context, separator)).isNil()) {
+            bh.consume(line);
+            lines++;
+        }
+        return lines;
+    }
+
+    @Benchmark
+    public int gets_single_byte(Blackhole bh) {
+        return drainGets(lf, bh);
+    }
+
+    @Benchmark
+    public int gets_multi_byte(Blackhole bh) {
+        return drainGets(crlf, bh);
+    }
+
+    @Benchmark
+    public int gets_paragraph(Blackhole bh) {
+        return drainGets(paragraph, bh);
+    }
+
+    /**
+     * gets_single_byte over the same content in a direct ByteBuffer.
+     */
+    @Benchmark
+    public int gets_direct_buffer(Blackhole bh) {
+        direct.rewind(context);
+        int lines = 0;
+        IRubyObject line;
+        while (!(line = direct.gets(context, lf)).isNil()) {
+            bh.consume(line);
+            lines++;
+        }
+        return lines;
+    }
+
+    @Benchmark
+    public IRubyObject read() {
+        io.rewind(context);
+        return io.read(context);
+    }
+
+    @Benchmark
+    public int read_outbuf(Blackhole bh) {
+        io.rewind(context);
+        int chunks = 0;
+        IRubyObject read;
+        while (!(read = io.read(context, chunk, outbuf)).isNil()) {
+            bh.consume(read);
+            chunks++;
+        }
+        return chunks;
+    }
+
+    /**
+     * read_outbuf into an IO::Buffer instead of a String.
+     */
+    @Benchmark
+    public int read_into() {
+        io.rewind(context);
+        int chunks = 0;
+        while (((RubyFixnum) StringIO.BufferIO.read_into(context, io, readIntoArgs)).getLongValue() > 0) {
+            chunks++;
+        }
+        return chunks;
+    }
+
+    @Benchmark
+    public int pread(Blackhole bh) {
+        int reads = 0;
+        for (int offset = 0; offset < size; offset += 4096) {
+            bh.consume(io.pread(context, preadLength, RubyFixnum.newFixnum(runtime, offset)));
+            reads++;
+        }
+        return reads;
+    }
+
+    @Benchmark
+    public int getc(Blackhole bh) {
+        io.rewind(context);
+        int chars = 0;
+        IRubyObject c;
+        while (!(c = io.getc(context)).isNil()) {
+            bh.consume(c);
+            chars++;
+        }
+        return chars;
+    }
+
+    @Benchmark
+    public int getbyte(Blackhole bh) {
+        io.rewind(context);
+        int bytes = 0;
+        IRubyObject b;
+        while (!(b = io.getbyte(context)).isNil()) {
+            bh.consume(b);
+            bytes++;
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    public IRubyObject each_byte(Blackhole bh) {
+        io.rewind(context);
+        Block block = BenchmarkSupport.block(context, (ctx, args, blk) -> {
+            bh.consume(args[0]);
+            return ctx.nil;
+        });
+        return io.each_byte(context, block);
+    }
+
+    @Benchmark
+    public IRubyObject each_codepoint(Blackhole bh) {
+        io.rewind(context);
+        Block block = BenchmarkSupport.block(context, (ctx, args, blk) -> {
+            bh.consume(args[0]);
+            return ctx.nil;
+        });
+        return io.each_codepoint(context, block);
+    }
+}
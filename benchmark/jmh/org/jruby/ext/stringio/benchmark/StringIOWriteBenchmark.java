@@ -0,0 +1,183 @@
+package org.jruby.ext.stringio.benchmark;
+
+import org.jcodings.Encoding;
+import org.jruby.Ruby;
+import org.jruby.RubyFixnum;
+import org.jruby.RubyString;
+import org.jruby.ext.stringio.StringIO;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-side hot paths and push-back. Write benchmarks build a fresh buffer
+ * of {@code size} bytes per operation out of one-line fragments.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class StringIOWriteBenchmark {
+    @Param({"64", "4096", "1048576", "268435456"})
+    public int size;
+
+    @Param({"ASCII-8BIT", "UTF-8", "UTF-16LE"})
+    public String encoding;
+
+    private Ruby runtime;
+    private ThreadContext context;
+    private Encoding enc;
+    private RubyString fragment;
+    private RubyString foreign;
+    private RubyString line;
+    private StringIO filled;
+    private IRubyObject pushback;
+    private IRubyObject length;
+    private IRubyObject rubyEncoding;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        runtime = BenchmarkSupport.newRuntime();
+        context = runtime.getCurrentContext();
+        enc = BenchmarkSupport.encoding(encoding);
+
+        String sample = BenchmarkSupport.sampleLine(encoding);
+        fragment = BenchmarkSupport.newString(runtime, sample, encoding);
+        line = BenchmarkSupport.newString(runtime, sample.substring(0, sample.length() - 2), encoding);
+        foreign = BenchmarkSupport.newString(runtime, sample, "UTF-16LE".equals(encoding) ? "UTF-8" : "UTF-16LE");
+
+        byte[] content = BenchmarkSupport.content(encoding, size);
+        filled = BenchmarkSupport.newStringIO(context, BenchmarkSupport.newString(runtime, content, enc));
+        pushback = RubyFixnum.newFixnum(runtime, '#');
+        length = RubyFixnum.newFixnum(runtime, size);
+        rubyEncoding = runtime.getEncodingService().convertEncodingToRubyEncoding(enc);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        runtime.tearDown(false);
+    }
+
+    private StringIO newStringIO() {
+        return BenchmarkSupport.newStringIO(context, RubyString.newEmptyString(runtime, enc));
+    }
+
+    @Benchmark
+    public IRubyObject write() {
+        StringIO io = newStringIO();
+        for (int written = 0; written < size; written += fragment.size()) {
+            io.write(context, fragment);
+        }
+        return io;
+    }
+
+    @Benchmark
+    public IRubyObject write_reserved() {
+        StringIO io = newStringIO();
+        io.reserve(context, length);
+        for (int written = 0; written < size; written += fragment.size()) {
+            io.write(context, fragment);
+        }
+        return io;
+    }
+
+    /**
+     * As write, into a buffer the StringIO creates itself and only hands out at the end.
+     */
+    @Benchmark
+    public IRubyObject write_owned() {
+        StringIO io = (StringIO) runtime.getClass("StringIO").newInstance(context, Block.NULL_BLOCK);
+        io.set_encoding(context, rubyEncoding);
+        for (int written = 0; written < size; written += fragment.size()) {
+            io.write(context, fragment);
+        }
+        return io.string(context);
+    }
+
+    /**
+     * Eight fragments per call, as a template renderer would pass them.
+     */
+    @Benchmark
+    public IRubyObject write_gathered() {
+        StringIO io = newStringIO();
+        IRubyObject[] fragments = new IRubyObject[8];
+        Arrays.fill(fragments, fragment);
+        for (int written = 0; written < size; written += fragment.size() * fragments.length) {
+            io.write(context, fragments);
+        }
+        return io;
+    }
+
+    /**
+     * Fragments in another encoding, converted on every write; binary targets take them as they are.
+     */
+    @Benchmark
+    public IRubyObject write_transcoded() {
+        StringIO io = newStringIO();
+        for (int written = 0; written < size; written += foreign.size()) {
+            io.write(context, foreign);
+        }
+        return io;
+    }
+
+    @Benchmark
+    public IRubyObject append() {
+        StringIO io = newStringIO();
+        for (int written = 0; written < size; written += fragment.size()) {
+            StringIO.GenericWritable.append(context, io, fragment);
+        }
+        return io;
+    }
+
+    @Benchmark
+    public IRubyObject puts() {
+        StringIO io = newStringIO();
+        for (int written = 0; written < size; written += fragment.size()) {
+            StringIO.GenericWritable.puts(context, io, line);
+        }
+        return io;
+    }
+
+    @Benchmark
+    public int ungetc(Blackhole bh) {
+        filled.rewind(context);
+        int chars = 0;
+        IRubyObject c;
+        while (!(c = filled.getc(context)).isNil()) {
+            filled.ungetc(context, c);
+            bh.consume(filled.getc(context));
+            chars++;
+        }
+        return chars;
+    }
+
+    /**
+     * Push back at position 0, which has to make room at the head of the
+     * buffer; the truncate keeps the buffer at {@code size} bytes.
+     */
+    @Benchmark
+    public IRubyObject ungetbyte_at_start() {
+        filled.rewind(context);
+        filled.ungetbyte(context, pushback);
+        return filled.truncate(context, length);
+    }
+}
@@ -0,0 +1,89 @@
+/***** BEGIN LICENSE BLOCK *****
+ * Version: EPL 2.0/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Eclipse Public
+ * License Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either of the GNU General Public License Version 2 or later (the "GPL"),
+ * or the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the EPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the EPL, the GPL or the LGPL.
+ ***** END LICENSE BLOCK *****/
+
+
+package org.jruby.ext.stringio;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bytes appended to the end of a StringIO's string, kept as a list of chunks so that writing never copies what has
+ * already been written. The string is brought up to date, once, when something needs its bytes in one piece.
+ *
+ * Every chunk but the last is full. Not thread-safe; the StringIO only uses it under its lock.
+ */
+final class AppendBuffer {
+    private static final int MIN_CHUNK = 1 << 16;
+    private static final int MAX_CHUNK = 1 << 20;
+
+    private final List<byte[]> chunks = new ArrayList<>();
+    private byte[] last;
+    private int lastLength;
+    private long size;
+
+    long size() {
+        return size;
+    }
+
+    void append(byte[] src, int off, int len) {
+        size += len;
+
+        if (last != null) {
+            int n = Math.min(len, last.length - lastLength);
+            System.arraycopy(src, off, last, lastLength, n);
+            lastLength += n;
+            off += n;
+            len -= n;
+        }
+
+        if (len > 0) {
+            // chunks grow with the content, so a long run of small writes needs few of them
+            last = new byte[Math.max(len, (int) Math.min(MAX_CHUNK, Math.max(MIN_CHUNK, size >>> 3)))];
+            chunks.add(last);
+            System.arraycopy(src, off, last, 0, len);
+            lastLength = len;
+        }
+    }
+
+    void copyTo(byte[] dst, int off) {
+        for (int i = 0; i < chunks.size(); i++) {
+            byte[] chunk = chunks.get(i);
+            int len = chunk == last ? lastLength : chunk.length;
+            System.arraycopy(chunk, 0, dst, off, len);
+            off += len;
+        }
+    }
+
+    void copyTo(BufferContent dst, long at) {
+        for (int i = 0; i < chunks.size(); i++) {
+            byte[] chunk = chunks.get(i);
+            int len = chunk == last ? lastLength : chunk.length;
+            dst.put(at, chunk, 0, len);
+            at += len;
+        }
+    }
+}
@@ -0,0 +1,416 @@
+/***** BEGIN LICENSE BLOCK *****
+ * Version: EPL 2.0/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Eclipse Public
+ * License Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either of the GNU General Public License Version 2 or later (the "GPL"),
+ * or the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the EPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the EPL, the GPL or the LGPL.
+ ***** END LICENSE BLOCK *****/
+
+
+package org.jruby.ext.stringio;
+
+import org.jcodings.Encoding;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The content of a StringIO kept outside a String: the bytes of a ByteBuffer between its position and limit when it
+ * was wrapped, a mapped file, or heap storage for content that has outgrown a String. Reads copy out only the ranges
+ * asked for; writes go into the storage in place as long as they fit.
+ *
+ * The bytes are held in segments of {@link #SEGMENT_SIZE} bytes, only the last of which may be shorter, so offsets
+ * are longs and the content is not limited to the 2 GB of a single array or buffer. Storage allocated here grows by
+ * reallocating its last segment or adding another, and a writable mapping by extending the file and mapping its new
+ * end, at least doubling what is mapped up to a segment at a time; {@link #trim} cuts the file back to the content.
+ * Wrapped buffers and read-only mappings have a fixed capacity.
+ *
+ * Not thread-safe; the StringIO only uses it under its lock.
+ */
+final class BufferContent implements ByteContent {
+    static final int SEGMENT_SHIFT = 30;
+    static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    // bytes copied out at a time when searching
+    private static final int CHUNK = 4096;
+    // bytes copied at a time when moving content into heap segments
+    private static final int COPY_CHUNK = 1 << 20;
+    // first allocation of a heap segment, which then doubles up to SEGMENT_SIZE
+    private static final int MIN_SEGMENT = 1 << 16;
+
+    private ByteBuffer[] segments;
+    private final boolean growable;
+    // maps more of the file when a writable mapping grows; null for any other storage
+    private final FileMapping file;
+    private long capacity;
+    // bytes of a writable mapping that views handed out may still read, which the file is never cut below
+    private long viewed;
+    // bytes [0, size) are content, the rest of the storage is room to write
+    private long size;
+    // bytes [chunkStart, chunkEnd) copied out by the last search, reused while the next one starts inside them
+    private byte[] chunk;
+    private long chunkStart, chunkEnd;
+
+    private BufferContent(ByteBuffer[] segments, boolean growable, FileMapping file, long size) {
+        this.segments = segments;
+        this.growable = growable;
+        this.file = file;
+        this.capacity = capacityOf(segments);
+        this.size = size;
+    }
+
+    /**
+     * The file under a writable mapping.
+     */
+    interface FileMapping {
+        /**
+         * Map a part of the file, extending the file first if the part goes past its end.
+         */
+        ByteBuffer map(long offset, int size);
+
+        /**
+         * Cut the file to length bytes, where the platform allows it while parts of the file are mapped.
+         */
+        void setLength(long length);
+    }
+
+    /**
+     * Wrap the bytes of buffer between its position and limit, all of which are content.
+     */
+    BufferContent(ByteBuffer buffer) {
+        this(split(buffer.slice()), false, null, buffer.remaining());
+    }
+
+    /**
+     * Wrap consecutive segments, each but the last exactly SEGMENT_SIZE bytes, all of which are content.
+     */
+    static BufferContent of(ByteBuffer[] segments) {
+        return new BufferContent(segments, false, null, capacityOf(segments));
+    }
+
+    /**
+     * Wrap the consecutive segments of a writable mapping, as {@link #of} does, growing it through file whenever a
+     * write or truncate goes past its end.
+     */
+    static BufferContent mapped(ByteBuffer[] segments, FileMapping file) {
+        return new BufferContent(segments, true, file, capacityOf(segments));
+    }
+
+    /**
+     * Heap storage holding a copy of bytes[off, off + len), with room for at least capacity bytes.
+     */
+    static BufferContent allocate(byte[] bytes, int off, int len, long capacity) {
+        BufferContent content = new BufferContent(new ByteBuffer[] {ByteBuffer.allocate(MIN_SEGMENT)}, true, null, 0);
+        content.reserve(Math.max(len, capacity));
+        content.put(0, bytes, off, len);
+        return content;
+    }
+
+    /**
+     * Heap storage holding a copy of content, with room for at least capacity bytes.
+     */
+    static BufferContent copyOf(BufferContent content, long capacity) {
+        BufferContent copy = allocate(new byte[0], 0, 0, Math.max(content.size, capacity));
+        byte[] bytes = new byte[(int) Math.min(content.size, COPY_CHUNK)];
+        for (long p = 0; p < content.size; p += bytes.length) {
+            int len = (int) Math.min(bytes.length, content.size - p);
+            content.get(p, bytes, 0, len);
+            copy.copyIn(p, bytes, 0, len);
+        }
+        copy.size = content.size;
+        return copy;
+    }
+
+    /**
+     * The same storage for reading with a search cache of its own, holding the content as it is now. Changes made in
+     * place through either one show through the other; growing or reallocating does not.
+     */
+    BufferContent view() {
+        if (file != null) viewed = Math.max(viewed, size);
+        return new BufferContent(segments.clone(), false, null, size);
+    }
+
+    private static ByteBuffer[] split(ByteBuffer buffer) {
+        int count = Math.max(1, (buffer.capacity() + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+        ByteBuffer[] segments = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            ByteBuffer segment = buffer.duplicate();
+            segment.position(i << SEGMENT_SHIFT);
+            segment.limit((int) Math.min(buffer.capacity(), (long) (i + 1) << SEGMENT_SHIFT));
+            segments[i] = segment.slice();
+        }
+        return segments;
+    }
+
+    private static long capacityOf(ByteBuffer[] segments) {
+        int last = segments.length - 1;
+        return ((long) last << SEGMENT_SHIFT) + segments[last].capacity();
+    }
+
+    long size() {
+        return size;
+    }
+
+    long capacity() {
+        return capacity;
+    }
+
+    boolean isGrowable() {
+        return growable;
+    }
+
+    boolean isReadOnly() {
+        return segments[0].isReadOnly();
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    @Override
+    public int get(long index) {
+        return segments[(int) (index >>> SEGMENT_SHIFT)].get((int) index & SEGMENT_MASK) & 0xFF;
+    }
+
+    void get(long index, byte[] dst, int off, int len) {
+        while (len > 0) {
+            ByteBuffer source = segments[(int) (index >>> SEGMENT_SHIFT)].duplicate();
+            int at = (int) index & SEGMENT_MASK;
+            int n = Math.min(len, source.capacity() - at);
+            source.position(at);
+            source.get(dst, off, n);
+            index += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    byte[] bytes(long index, int len) {
+        byte[] bytes = new byte[len];
+        get(index, bytes, 0, len);
+        return bytes;
+    }
+
+    /**
+     * Views of bytes [index, index + len) over the storage itself, one per segment they touch, for writing them out
+     * without copying. They are only valid until the content is next changed.
+     */
+    ByteBuffer[] slices(long index, long len) {
+        if (len == 0) return new ByteBuffer[0];
+
+        int first = (int) (index >>> SEGMENT_SHIFT);
+        int last = (int) ((index + len - 1) >>> SEGMENT_SHIFT);
+        ByteBuffer[] slices = new ByteBuffer[last - first + 1];
+        for (int i = 0; i < slices.length; i++) {
+            ByteBuffer slice = segments[first + i].duplicate();
+            int at = (int) index & SEGMENT_MASK;
+            int n = (int) Math.min(len, slice.capacity() - at);
+            slice.limit(at + n);
+            slice.position(at);
+            slices[i] = slice;
+            index += n;
+            len -= n;
+        }
+        return slices;
+    }
+
+    /**
+     * Write bytes at index, zero-filling any gap after the current content.
+     *
+     * @return false, leaving the content untouched, if they do not fit in storage that cannot grow
+     */
+    boolean put(long index, byte[] src, int off, int len) {
+        if (isReadOnly()) return false;
+        if (index + len > capacity) {
+            if (!growable) return false;
+            reserve(index + len);
+        }
+
+        if (index > size) zero(size, index);
+        copyIn(index, src, off, len);
+        if (index + len > size) size = index + len;
+        chunkEnd = 0;
+
+        return true;
+    }
+
+    /**
+     * Cut the content to len bytes, or zero-fill it up to len.
+     *
+     * @return false, leaving the content untouched, if len does not fit in storage that cannot grow
+     */
+    boolean truncate(long len) {
+        if (isReadOnly()) return false;
+        if (len > capacity) {
+            if (!growable) return false;
+            reserve(len);
+        }
+
+        long old = size;
+        if (len > size) zero(size, len);
+        size = len;
+        chunkEnd = 0;
+        if (len < old) trim();
+
+        return true;
+    }
+
+    /**
+     * Cut the file under a writable mapping down to the content, dropping the room mapped ahead of it, but not below
+     * the bytes views handed out may still read. The last segment is mapped again first so that none runs past the
+     * end of the file.
+     */
+    void trim() {
+        long length = Math.max(size, viewed);
+        if (file == null || length >= capacity) return;
+
+        int count = (int) Math.max(1, (length + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+        long offset = (long) (count - 1) << SEGMENT_SHIFT;
+        ByteBuffer[] cut = Arrays.copyOf(segments, count);
+        cut[count - 1] = file.map(offset, (int) (length - offset));
+        segments = cut;
+        capacity = capacityOf(segments);
+        file.setLength(length);
+    }
+
+    private void copyIn(long index, byte[] src, int off, int len) {
+        while (len > 0) {
+            ByteBuffer target = segments[(int) (index >>> SEGMENT_SHIFT)].duplicate();
+            int at = (int) index & SEGMENT_MASK;
+            int n = Math.min(len, target.capacity() - at);
+            target.position(at);
+            target.put(src, off, n);
+            index += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void zero(long from, long to) {
+        byte[] zeros = new byte[(int) Math.min(to - from, CHUNK)];
+        for (long p = from; p < to; p += zeros.length) {
+            copyIn(p, zeros, 0, (int) Math.min(zeros.length, to - p));
+        }
+    }
+
+    // make room for needed bytes in storage allocated here, or in the file under a writable mapping; storage that
+    // cannot grow is left as it is
+    void reserve(long needed) {
+        if (!growable || needed <= capacity) return;
+
+        if (file != null) {
+            // the file grows to at least twice what is mapped, by up to a segment, remapping its last segment if
+            // that was short, so that writing a byte at a time maps and extends the file only now and then
+            long wanted = Math.max(needed, Math.min(Math.max(capacity << 1, MIN_SEGMENT), capacity + SEGMENT_SIZE));
+            int last = segments.length - 1;
+            int from = segments[last].capacity() < SEGMENT_SIZE ? last : last + 1;
+            ByteBuffer[] grown = Arrays.copyOf(segments, (int) ((wanted + SEGMENT_MASK) >>> SEGMENT_SHIFT));
+            for (int i = from; i < grown.length; i++) {
+                long offset = (long) i << SEGMENT_SHIFT;
+                grown[i] = file.map(offset, (int) Math.min(wanted - offset, SEGMENT_SIZE));
+            }
+            segments = grown;
+            capacity = capacityOf(segments);
+            return;
+        }
+
+        while (capacity < needed) {
+            int last = segments.length - 1;
+            ByteBuffer tail = segments[last];
+            if (tail.capacity() < SEGMENT_SIZE) {
+                long wanted = Math.max(needed - ((long) last << SEGMENT_SHIFT), (long) tail.capacity() << 1);
+                ByteBuffer grown = ByteBuffer.allocate((int) Math.min(wanted, SEGMENT_SIZE));
+                ByteBuffer old = tail.duplicate();
+                old.clear();
+                grown.put(old);
+                segments[last] = grown;
+            } else {
+                segments = Arrays.copyOf(segments, last + 2);
+                segments[last + 1] = ByteBuffer.allocate((int) Math.min(Math.max(needed - capacity, MIN_SEGMENT), SEGMENT_SIZE));
+            }
+            capacity = capacityOf(segments);
+        }
+    }
+
+    @Override
+    public long indexOf(long from, long to, byte b) {
+        for (long p = from; p < to; p = chunkEnd) {
+            if (p < chunkStart || p >= chunkEnd) {
+                int len = (int) Math.min(CHUNK, size - p);
+                get(p, chunk(), 0, len);
+                chunkStart = p;
+                chunkEnd = p + len;
+            }
+            int i = ByteScanner.indexOf(chunk, (int) (p - chunkStart), (int) (Math.min(to, chunkEnd) - chunkStart), b);
+            if (i != -1) return chunkStart + i;
+        }
+        return -1;
+    }
+
+    @Override
+    public long indexOf(long from, long to, byte[] sep, int sepBegin, int sepLen) {
+        byte first = sep[sepBegin];
+        long last = to - sepLen;
+
+        search: for (long p = from; p <= last; p++) {
+            p = indexOf(p, last + 1, first);
+            if (p == -1) break;
+            for (int i = 1; i < sepLen; i++) {
+                if (get(p + i) != (sep[sepBegin + i] & 0xFF)) continue search;
+            }
+            return p;
+        }
+
+        return -1;
+    }
+
+    // StringIO#bm_search, a byte at a time
+    @Override
+    public long search(long from, long to, byte[] sep, int sepBegin, int sepLen, int[] skip) {
+        for (long i = from + sepLen - 1; i < to; i += skip[get(i)]) {
+            long k = i;
+            int j = sepLen - 1;
+            while (j >= 0 && get(k) == (sep[sepBegin + j] & 0xFF)) {
+                k--;
+                j--;
+            }
+            if (j < 0) return k + 1;
+        }
+        return -1;
+    }
+
+    // looks only at the bytes it needs
+    @Override
+    public long rightCharHead(Encoding enc, long start, long p, long end) {
+        int len = (int) (Math.min(end, p + enc.maxLength()) - start);
+        byte[] bytes = len <= CHUNK ? chunk() : new byte[len];
+        chunkEnd = 0;
+        get(start, bytes, 0, len);
+        return start + StringIO.rightCharHead(enc, bytes, 0, (int) (p - start), len);
+    }
+
+    private byte[] chunk() {
+        byte[] chunk = this.chunk;
+        if (chunk == null) this.chunk = chunk = new byte[CHUNK];
+        return chunk;
+    }
+}
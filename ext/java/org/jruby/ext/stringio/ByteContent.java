@@ -0,0 +1,62 @@
+/***** BEGIN LICENSE BLOCK *****
+ * Version: EPL 2.0/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Eclipse Public
+ * License Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either of the GNU General Public License Version 2 or later (the "GPL"),
+ * or the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the EPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the EPL, the GPL or the LGPL.
+ ***** END LICENSE BLOCK *****/
+
+package org.jruby.ext.stringio;
+
+import org.jcodings.Encoding;
+
+/**
+ * Read access to the content of a StringIO, for the scans that work the same whether a String or a
+ * {@link BufferContent} holds it. Offsets are longs counted from the start of the content.
+ */
+interface ByteContent {
+    /**
+     * @return the byte at index, as an unsigned value
+     */
+    int get(long index);
+
+    /**
+     * @return the index of the first b in [from, to), or -1
+     */
+    long indexOf(long from, long to, byte b);
+
+    /**
+     * @return the index of the first occurrence of sep[sepBegin, sepBegin + sepLen) that lies entirely within
+     * [from, to), or -1
+     */
+    long indexOf(long from, long to, byte[] sep, int sepBegin, int sepLen);
+
+    /**
+     * As {@link #indexOf(long, long, byte[], int, int)}, skipping ahead with the bm_search table skip built for
+     * sep, which pays off for separators longer than {@link ByteScanner#SEPARATOR_MAX}.
+     */
+    long search(long from, long to, byte[] sep, int sepBegin, int sepLen, int[] skip);
+
+    /**
+     * As {@link StringIO#rightCharHead} over [start, end).
+     */
+    long rightCharHead(Encoding enc, long start, long p, long end);
+}
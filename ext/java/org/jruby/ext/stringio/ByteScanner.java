@@ -0,0 +1,120 @@
+/***** BEGIN LICENSE BLOCK *****
+ * Version: EPL 2.0/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Eclipse Public
+ * License Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either of the GNU General Public License Version 2 or later (the "GPL"),
+ * or the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the EPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the EPL, the GPL or the LGPL.
+ ***** END LICENSE BLOCK *****/
+
+package org.jruby.ext.stringio;
+
+import org.jruby.util.ByteList;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Separator scanning for StringIO, eight bytes at a time.
+ *
+ * Words are loaded little-endian through a heap ByteBuffer, which current JVMs compile down to a single
+ * unaligned load, and matching bytes are found with the usual SWAR zero-byte test.
+ */
+final class ByteScanner {
+    private ByteScanner() {}
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long LOW7 = 0x7F7F7F7F7F7F7F7FL;
+
+    // below this a plain loop is as fast as setting up the word loop
+    private static final int SWAR_MIN = 16;
+
+    // longer separators skip far enough in bm_search that the first-byte scan does not pay off
+    static final int SEPARATOR_MAX = 16;
+
+    /**
+     * Sets the high bit of every byte of x that is zero, and no other bits. Unlike the cheaper
+     * <code>(x - ONES) &amp; ~x &amp; ~LOW7</code> form this has no false positives, so every set bit is a match.
+     */
+    private static long zeroBytes(long x) {
+        return ~(((x & LOW7) + LOW7) | x | LOW7);
+    }
+
+    /**
+     * @return the index of the first b in bytes[from, to), or -1
+     */
+    static int indexOf(byte[] bytes, int from, int to, byte b) {
+        int p = from;
+
+        if (to - from >= SWAR_MIN) {
+            ByteBuffer words = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            long pattern = (b & 0xFFL) * ONES;
+            for (; p + Long.BYTES <= to; p += Long.BYTES) {
+                long match = zeroBytes(words.getLong(p) ^ pattern);
+                if (match != 0) return p + (Long.numberOfTrailingZeros(match) >>> 3);
+            }
+        }
+
+        for (; p < to; p++) {
+            if (bytes[p] == b) return p;
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return the number of times b occurs in bytes[from, to)
+     */
+    static int count(byte[] bytes, int from, int to, byte b) {
+        int p = from;
+        int count = 0;
+
+        if (to - from >= SWAR_MIN) {
+            ByteBuffer words = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            long pattern = (b & 0xFFL) * ONES;
+            for (; p + Long.BYTES <= to; p += Long.BYTES) {
+                count += Long.bitCount(zeroBytes(words.getLong(p) ^ pattern));
+            }
+        }
+
+        for (; p < to; p++) {
+            if (bytes[p] == b) count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * @return the index of the first occurrence of sep[sepBegin, sepBegin + sepLen) that lies entirely within
+     * bytes[from, to), or -1
+     */
+    static int indexOf(byte[] bytes, int from, int to, byte[] sep, int sepBegin, int sepLen) {
+        byte first = sep[sepBegin];
+        int last = to - sepLen;
+
+        for (int p = from; p <= last; p++) {
+            p = indexOf(bytes, p, last + 1, first);
+            if (p == -1) break;
+            if (ByteList.memcmp(bytes, p, sep, sepBegin, sepLen) == 0) return p;
+        }
+
+        return -1;
+    }
+}
@@ -0,0 +1,103 @@
+/***** BEGIN LICENSE BLOCK *****
+ * Version: EPL 2.0/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Eclipse Public
+ * License Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either of the GNU General Public License Version 2 or later (the "GPL"),
+ * or the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the EPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the EPL, the GPL or the LGPL.
+ ***** END LICENSE BLOCK *****/
+
+package org.jruby.ext.stringio;
+
+/**
+ * Byte offsets of the lines of a StringIO's content, built lazily and only as far as it has been asked for.
+ *
+ * A line starts at offset 0 and right after every "\n", so content ending in "\n" has an empty last line
+ * starting at its length. Writes through the StringIO cut the index back to the first modified byte; changes
+ * made to the String directly, bypassing the StringIO, are only noticed if they replace or shrink it.
+ */
+final class LineIndex {
+    // the String or BufferContent holding the content
+    private final Object holder;
+    private long[] starts = new long[16];
+    private int lines = 1;
+    // bytes [0, scanned) have been searched for newlines
+    private long scanned;
+
+    LineIndex(Object holder) {
+        this.holder = holder;
+    }
+
+    boolean isFor(Object holder) {
+        return this.holder == holder;
+    }
+
+    /**
+     * @param content the content of the holder, length bytes long
+     * @return the offset where line n starts, or -1 if the content has fewer lines
+     */
+    long lineStart(ByteContent content, long length, int n) {
+        if (scanned > length) invalidateFrom(length);
+        if (n >= lines) scan(content, length, n);
+
+        return n < lines ? starts[n] : -1;
+    }
+
+    private void scan(ByteContent content, long length, int n) {
+        while (lines <= n && scanned < length) {
+            long p = content.indexOf(scanned, length, (byte) '\n');
+            if (p == -1) {
+                scanned = length;
+                break;
+            }
+            scanned = p + 1;
+            add(scanned);
+        }
+    }
+
+    private void add(long start) {
+        if (lines == starts.length) {
+            long[] newStarts = new long[lines << 1];
+            System.arraycopy(starts, 0, newStarts, 0, lines);
+            starts = newStarts;
+        }
+        starts[lines++] = start;
+    }
+
+    /**
+     * Forget everything that depends on bytes at or after offset. Line starts up to and including offset stay,
+     * since a line start only depends on the byte in front of it.
+     */
+    void invalidateFrom(long offset) {
+        if (offset >= scanned) return;
+
+        int low = 1, high = lines;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (starts[mid] <= offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        lines = low;
+        scanned = offset;
+    }
+}
@@ -0,0 +1,77 @@
+/***** BEGIN LICENSE BLOCK *****
+ * Version: EPL 2.0/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Eclipse Public
+ * License Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either of the GNU General Public License Version 2 or later (the "GPL"),
+ * or the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the EPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the EPL, the GPL or the LGPL.
+ ***** END LICENSE BLOCK *****/
+
+
+package org.jruby.ext.stringio;
+
+import org.jruby.Finalizable;
+import org.jruby.Ruby;
+import org.jruby.RubyClass;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The ForkJoinPools of one runtime that the *_lines_parallel methods read lines in, one for each parallelism asked
+ * for. They are created on first use and shut down with the runtime, so that their threads, which JRuby adopts as
+ * Ruby threads once they call a block, do not outlive it.
+ */
+final class ParallelPools implements Finalizable {
+    private static final String VARIABLE = "stringio_parallel_pools";
+
+    private final Map<Integer, ForkJoinPool> pools = new HashMap<>();
+    private boolean shutdown;
+
+    /**
+     * Create the pools of the runtime the StringIO class is being defined in, kept on that class.
+     */
+    static void create(Ruby runtime, RubyClass stringIOClass) {
+        ParallelPools pools = new ParallelPools();
+        stringIOClass.setInternalVariable(VARIABLE, pools);
+        runtime.addInternalFinalizer(pools);
+    }
+
+    static ParallelPools of(Ruby runtime) {
+        return (ParallelPools) runtime.getClass("StringIO").getInternalVariable(VARIABLE);
+    }
+
+    synchronized ForkJoinPool get(Ruby runtime, int parallelism) {
+        if (shutdown) throw runtime.newThreadError("runtime is shutting down");
+
+        return pools.computeIfAbsent(parallelism, ForkJoinPool::new);
+    }
+
+    /**
+     * Shut the pools down as the runtime is torn down, interrupting whatever they still run.
+     */
+    @Override
+    public synchronized void finalize() {
+        shutdown = true;
+        for (ForkJoinPool pool : pools.values()) pool.shutdownNow();
+        pools.clear();
+    }
+}
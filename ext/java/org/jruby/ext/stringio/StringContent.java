@@ -0,0 +1,73 @@
+/***** BEGIN LICENSE BLOCK *****
+ * Version: EPL 2.0/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Eclipse Public
+ * License Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either of the GNU General Public License Version 2 or later (the "GPL"),
+ * or the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the EPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the EPL, the GPL or the LGPL.
+ ***** END LICENSE BLOCK *****/
+
+package org.jruby.ext.stringio;
+
+import org.jcodings.Encoding;
+import org.jruby.util.ByteList;
+
+/**
+ * {@link ByteContent} over the bytes of a String. A StringIO keeps one and points it at its String's ByteList before
+ * each scan, so it must only be used under the StringIO's lock and not kept across changes to the String.
+ */
+final class StringContent implements ByteContent {
+    private byte[] bytes;
+    private int begin;
+
+    StringContent reset(ByteList string) {
+        bytes = string.getUnsafeBytes();
+        begin = string.getBegin();
+        return this;
+    }
+
+    @Override
+    public int get(long index) {
+        return bytes[begin + (int) index] & 0xFF;
+    }
+
+    @Override
+    public long indexOf(long from, long to, byte b) {
+        int p = ByteScanner.indexOf(bytes, begin + (int) from, begin + (int) to, b);
+        return p == -1 ? -1 : p - begin;
+    }
+
+    @Override
+    public long indexOf(long from, long to, byte[] sep, int sepBegin, int sepLen) {
+        int p = ByteScanner.indexOf(bytes, begin + (int) from, begin + (int) to, sep, sepBegin, sepLen);
+        return p == -1 ? -1 : p - begin;
+    }
+
+    @Override
+    public long search(long from, long to, byte[] sep, int sepBegin, int sepLen, int[] skip) {
+        int p = StringIO.bm_search(sep, sepBegin, sepLen, bytes, begin + (int) from, (int) (to - from), skip);
+        return p < 0 ? -1 : from + p;
+    }
+
+    @Override
+    public long rightCharHead(Encoding enc, long start, long p, long end) {
+        return StringIO.rightCharHead(enc, bytes, begin + (int) start, begin + (int) p, begin + (int) end) - begin;
+    }
+}
@@ -45,7 +45,11 @@ import org.jruby.anno.JRubyClass;
 import org.jruby.anno.JRubyMethod;
 import org.jruby.ast.util.ArgsUtil;
 import org.jruby.common.IRubyWarnings;
+import org.jruby.internal.runtime.GlobalVariables;
+import org.jruby.ir.runtime.IRBreakJump;
+import org.jruby.ir.runtime.IRReturnJump;
 import org.jruby.java.addons.IOJavaAddons;
+import org.jruby.java.proxies.JavaProxy;
 import org.jruby.runtime.Arity;
 import org.jruby.runtime.Block;
 import org.jruby.runtime.Helpers;
@@ -56,6 +60,7 @@ import org.jruby.runtime.marshal.DataType;
 import org.jruby.util.ArraySupport;
 import org.jruby.util.ByteList;
 import org.jruby.util.CodeRangeable;
+import org.jruby.util.JRubyFile;
 import org.jruby.util.StringSupport;
 import org.jruby.util.TypeConverter;
 import org.jruby.util.func.ObjectObjectIntFunction;
@@ -64,13 +69,34 @@ import org.jruby.util.io.Getline;
 import org.jruby.util.io.IOEncodable;
 import org.jruby.util.io.OpenFile;
 
+import java.io.IOException;
 import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
 
-import static java.lang.Byte.toUnsignedInt;
 import static org.jruby.RubyEnumerator.enumeratorize;
 import static org.jruby.runtime.Visibility.PRIVATE;
 import static org.jruby.util.RubyStringBuilder.str;
@@ -80,22 +106,110 @@ import static org.jruby.util.RubyStringBuilder.types;
 @SuppressWarnings("serial")
 public class StringIO extends RubyObject implements EncodingCapable, DataType {
     static class StringIOData {
+        final StringIOStats stats;
         /**
          * ATTN: the value of internal might be reset to null
          * (during StringIO.open with block), so watch out for that.
          */
         RubyString string;
         Encoding enc;
-        int pos;
+        long pos;
         int lineno;
         int flags;
         volatile Object owner;
+        /**
+         * Threads parked in {@link #lock(ThreadContext, StringIOData, String)}, created on first contention.
+         */
+        volatile ConcurrentLinkedQueue<Thread> waiters;
+        /**
+         * Current spin budget before parking; adapted to how often spinning acquires the lock.
+         */
+        int spins = SPIN_START;
+        /**
+         * Line offsets of the content, built on the first {@link #seek_line} or {@link #line_offset}.
+         */
+        LineIndex lines;
+        /**
+         * Growth policy from the <code>growth_factor:</code> and <code>max_growth:</code> options; zero when not
+         * given. Without either the String grows its buffer as it normally would.
+         */
+        double growthFactor;
+        int maxGrowth;
+        /**
+         * Content of a StringIO over a ByteBuffer, or grown past what a String can hold, with string null. Whatever
+         * cannot work on the buffer directly copies it into a String first, see
+         * {@link StringIO#materialize(StringIOData)}.
+         */
+        BufferContent buffer;
+        /**
+         * Bytes written past the end of string but not copied into it yet, see {@link #appendChunks}. Anything
+         * that reads the string brings it up to date first, see {@link StringIO#flushAppends(StringIOData)}.
+         */
+        AppendBuffer appends;
+        /**
+         * Whether growing writes at the end may go into {@link #appends}: only while string is one this StringIO
+         * created and has not handed out, so nothing else can see it falling behind, and only until it is first
+         * brought up to date.
+         */
+        boolean appendChunks;
+        /**
+         * Bytes of string that a String from {@link StringIO#snapshot} still shares, those of the array up to
+         * snapshotEnd. They are copied before anything changes them in place, see
+         * {@link StringIO#releaseSnapshot(StringIOData, int)}.
+         */
+        byte[] snapshotBytes;
+        int snapshotEnd;
+        /**
+         * Reused by getline to scan string, see {@link StringIO#byteContent(StringIOData)}.
+         */
+        StringContent stringContent;
+        /**
+         * What {@link #stats} counts this StringIO for in live bytes, if it was initialized while they were enabled.
+         */
+        StringIOStats.Tracked tracked;
+
+        StringIOData(StringIOStats stats) {
+            this.stats = stats;
+        }
     }
+    private final StringIOStats stats;
     private StringIOData ptr;
     private byte flags;
 
     // MRI: get_strio, StringIO macro
     private StringIOData getPtrForWrite() {
+        StringIOData ptr = getPtrOrBufferForWrite();
+        if (ptr.buffer != null) materialize(ptr);
+
+        return ptr;
+    }
+
+    // MRI: get_strio, StringIO macro
+    private StringIOData getPtrForRead() {
+        StringIOData ptr = getPtrOrBufferForRead();
+        if (ptr.buffer != null) materialize(ptr);
+
+        return ptr;
+    }
+
+    // as getPtrForWrite, for callers that also work on the ByteBuffer of a StringIO over one
+    private StringIOData getPtrOrBufferForWrite() {
+        StringIOData ptr = getRawPtrForWrite();
+        if (ptr.appends != null) flushAppends(ptr);
+
+        return ptr;
+    }
+
+    // as getPtrForRead, for callers that also work on the ByteBuffer of a StringIO over one
+    private StringIOData getPtrOrBufferForRead() {
+        StringIOData ptr = getRawPtrForRead();
+        if (ptr.appends != null) flushAppends(ptr);
+
+        return ptr;
+    }
+
+    // as getPtrOrBufferForWrite, for callers that do not look at the bytes of a string with appends pending
+    private StringIOData getRawPtrForWrite() {
         // equivalent to rb_io_taint_check without tainting
         checkFrozen();
 
@@ -104,13 +218,120 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
         return ptr;
     }
 
-    // MRI: get_strio, StringIO macro
-    private StringIOData getPtrForRead() {
+    // as getPtrOrBufferForRead, for callers that do not look at the bytes of a string with appends pending
+    private StringIOData getRawPtrForRead() {
         checkInitialized();
 
         return ptr;
     }
 
+    /**
+     * Copy the bytes appended in chunks onto the end of the string, which holds all of them from then on and is
+     * appended to directly.
+     */
+    private void flushAppends(StringIOData ptr) {
+        boolean locked = lock(getRuntime().getCurrentContext(), ptr, "flush_appends");
+        try {
+            AppendBuffer appends = ptr.appends;
+            if (appends == null) return;
+
+            RubyString string = ptr.string;
+            int olen = string.size();
+            int size = olen + (int) appends.size();
+            releaseSnapshot(ptr, olen);
+            byte[] before = ptr.stats.enabled ? string.getByteList().getUnsafeBytes() : null;
+            string.modify(size);
+            ByteList bytes = string.getByteList();
+            appends.copyTo(bytes.getUnsafeBytes(), bytes.getBegin() + olen);
+            if (before != null) ptr.stats.copied(before, bytes, olen, appends.size());
+            bytes.setRealSize(size);
+            string.clearCodeRange();
+            ptr.appends = null;
+            ptr.appendChunks = false;
+        } finally {
+            if (locked) unlock(ptr);
+        }
+    }
+
+    /**
+     * Copy the content of a StringIO over a ByteBuffer into a String, which backs it from then on. A read-only
+     * buffer gives a frozen String.
+     */
+    private void materialize(StringIOData ptr) {
+        boolean locked = lock(getRuntime().getCurrentContext(), ptr, "materialize");
+        try {
+            BufferContent buffer = ptr.buffer;
+            if (buffer == null) return;
+            if (buffer.size() > MAX_CAPACITY) {
+                throw getRuntime().newIOError("content of " + buffer.size() + " bytes does not fit in a String");
+            }
+
+            RubyString string = RubyString.newString(getRuntime(), new ByteList(buffer.bytes(0, (int) buffer.size()), getEncoding(), false));
+            if (buffer.isReadOnly()) string.setFrozen(true);
+            buffer.trim();
+            ptr.string = string;
+            ptr.buffer = null;
+        } finally {
+            if (locked) unlock(ptr);
+        }
+    }
+
+    /**
+     * Move content that is about to grow past what a String can hold, or past the end of a buffer that cannot grow,
+     * into heap segments with room for needed bytes. Must be called under lock.
+     */
+    private static void outgrow(StringIOData ptr, long needed) {
+        BufferContent buffer = ptr.buffer;
+        if (buffer != null) {
+            if (!buffer.isGrowable()) ptr.buffer = BufferContent.copyOf(buffer, needed);
+            return;
+        }
+
+        ByteList bytes = ptr.string.getByteList();
+        if (ptr.enc == null) ptr.enc = bytes.getEncoding();
+        ptr.buffer = BufferContent.allocate(bytes.getUnsafeBytes(), bytes.getBegin(), bytes.getRealSize(), needed);
+        if (ptr.appends != null) ptr.appends.copyTo(ptr.buffer, bytes.getRealSize());
+        ptr.string = null;
+        ptr.appends = null;
+        ptr.lines = null;
+    }
+
+    // false once StringIO.open with a block has returned, leaving neither a String nor a ByteBuffer
+    private static boolean hasContent(StringIOData ptr) {
+        return ptr.string != null || ptr.buffer != null;
+    }
+
+    // number of bytes in the StringIO, whether a String or a ByteBuffer holds them
+    private static long contentSize(StringIOData ptr) {
+        BufferContent buffer = ptr.buffer;
+        if (buffer != null) return buffer.size();
+
+        RubyString string = ptr.string;
+        if (string == null) return 0;
+
+        AppendBuffer appends = ptr.appends;
+        return appends == null ? string.size() : string.size() + appends.size();
+    }
+
+    // must be called under lock with index inside the content
+    private static int contentByte(StringIOData ptr, long index) {
+        BufferContent buffer = ptr.buffer;
+        if (buffer != null) return buffer.get(index);
+
+        return ptr.string.getByteList().get((int) index) & 0xFF;
+    }
+
+    // must be called under lock with [from, from + len) inside the content
+    private static void copyContent(StringIOData ptr, long from, byte[] dst, int off, int len) {
+        BufferContent buffer = ptr.buffer;
+        if (buffer != null) {
+            buffer.get(from, dst, off, len);
+        } else {
+            ByteList bytes = ptr.string.getByteList();
+            System.arraycopy(bytes.getUnsafeBytes(), bytes.getBegin() + (int) from, dst, off, len);
+        }
+    }
+
     private static final String
     STRINGIO_VERSION = "3.2.1";
 
@@ -119,19 +340,30 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
     private static final byte STRIO_READWRITE = (STRIO_READABLE | STRIO_WRITABLE);
 
     private static final AtomicReferenceFieldUpdater<StringIOData, Object> LOCKED_UPDATER = AtomicReferenceFieldUpdater.newUpdater(StringIOData.class, Object.class, "owner");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<StringIOData, ConcurrentLinkedQueue> WAITERS_UPDATER = AtomicReferenceFieldUpdater.newUpdater(StringIOData.class, ConcurrentLinkedQueue.class, "waiters");
+
+    // spinning only pays off when the owner can make progress on another core
+    private static final int SPIN_MAX = Runtime.getRuntime().availableProcessors() > 1 ? 1 << 10 : 0;
+    private static final int SPIN_START = SPIN_MAX >> 4;
+    // the budget never shrinks below this, so that a win can still grow it back
+    private static final int SPIN_MIN = SPIN_MAX > 0 ? 1 : 0;
 
     private static final ThreadLocal<Object> VMODE_VPERM_TL = ThreadLocal.withInitial(() -> EncodingUtils.vmodeVperm(null, null));
     private static final ThreadLocal<int[]> FMODE_TL = ThreadLocal.withInitial(() -> new int[]{0});
     private static final int[] OFLAGS_UNUSED = new int[]{0};
 
     public static RubyClass createStringIOClass(final Ruby runtime) {
+        StringIOStats stats = StringIOStats.create(runtime);
         RubyClass stringIOClass = runtime.defineClass(
-                "StringIO", runtime.getObject(), StringIO::new);
+                "StringIO", runtime.getObject(), (r, klass) -> new StringIO(r, klass, stats));
+        stats.attach(stringIOClass);
+        ParallelPools.create(runtime, stringIOClass);
 
         RubyString version = RubyString.newString(runtime, STRINGIO_VERSION);
         stringIOClass.defineConstant("VERSION", version);
 
-        stringIOClass.defineConstant("MAX_LENGTH", RubyNumeric.int2fix(runtime, Integer.MAX_VALUE));
+        stringIOClass.defineConstant("MAX_LENGTH", RubyFixnum.newFixnum(runtime, Long.MAX_VALUE));
 
         stringIOClass.defineAnnotatedMethods(StringIO.class);
         stringIOClass.includeModule(runtime.getEnumerable());
@@ -148,12 +380,17 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
         genericWritable.defineAnnotatedMethods(GenericWritable.class);
         stringIOClass.includeModule(genericWritable);
 
+        // older JRuby has no IO::Buffer, and could not load BufferIO
+        if (runtime.getIO().getConstantAt("Buffer") != null) {
+            stringIOClass.defineAnnotatedMethods(BufferIO.class);
+        }
+
         return stringIOClass;
     }
 
     // mri: get_enc
     public Encoding getEncoding() {
-        StringIOData ptr = this.getPtrForRead();
+        StringIOData ptr = this.getRawPtrForRead();
         Encoding enc = ptr.enc;
         if (enc != null) {
             return enc;
@@ -168,7 +405,7 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
     }
 
     public void setEncoding(Encoding enc) {
-        getPtrForWrite().enc = enc;
+        getRawPtrForWrite().enc = enc;
     }
 
     @JRubyMethod(name = "new", rest = true, meta = true)
@@ -261,6 +498,132 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
         return yieldOrReturn(context, block, strio);
     }
 
+    /**
+     * StringIO.map(path, mode = "r", **opts) {|strio| ... }
+     *
+     * A StringIO over the file at path, mapped into memory rather than read: only the bytes a read returns are
+     * copied onto the heap. With "r+" or "w" the mapping is writable and writes go to the file in place; "w" first
+     * truncates the file, or creates it. A write or truncate past the end of the file extends it and maps the new
+     * end, at least doubling what is mapped so that growing a little at a time only maps now and then; the room
+     * mapped ahead of the content is cut from the file again by close, close_write and the end of the block.
+     * Truncating to a smaller size cuts the file too, though never below the content a cursor may still read.
+     */
+    @JRubyMethod(meta = true, required = 1, optional = 2)
+    public static IRubyObject map(ThreadContext context, IRubyObject recv, IRubyObject[] args, Block block) {
+        Ruby runtime = context.runtime;
+        RubyString path = RubyFile.get_path(context, args[0]);
+        StringIO strio = new StringIO(runtime, (RubyClass) recv);
+        strio.ptr = new StringIOData(strio.stats);
+
+        IRubyObject vmode = args.length > 1 ? args[1] : context.nil;
+        IRubyObject options = args.length > 2 ? args[2] : context.nil;
+        if (options.isNil() && !ArgsUtil.getOptionsArg(runtime, vmode).isNil()) {
+            options = vmode;
+            vmode = context.nil;
+        }
+        if (vmode.isNil()) vmode = runtime.newString("r");
+
+        IntFunction<BufferContent> source = fmode -> mapFile(context, path, fmode);
+        if (options.isNil()) {
+            strio.strioInit(context, 2, context.nil, vmode, null, source);
+        } else {
+            strio.strioInit(context, 3, context.nil, vmode, options, source);
+        }
+
+        return yieldOrReturn(context, block, strio);
+    }
+
+    /**
+     * StringIO.stats -> hash
+     *
+     * The counters of every StringIO in this runtime by name, see StringIOStats: bytes and calls read and written,
+     * backing arrays reallocated and the bytes copied into them, conversions of written strings, lock acquisitions
+     * and the spins waiting on contended locks, and in live_bytes the bytes behind the StringIOs still alive that
+     * were initialized while counting. Nothing is counted unless StringIO.stats_enabled is true.
+     */
+    @JRubyMethod(meta = true)
+    public static IRubyObject stats(ThreadContext context, IRubyObject recv) {
+        Ruby runtime = context.runtime;
+        StringIOStats counters = StringIOStats.of(runtime);
+        RubyHash stats = RubyHash.newHash(runtime);
+        stats.fastASet(runtime.newSymbol("bytes_read"), runtime.newFixnum(counters.bytesRead.sum()));
+        stats.fastASet(runtime.newSymbol("bytes_written"), runtime.newFixnum(counters.bytesWritten.sum()));
+        stats.fastASet(runtime.newSymbol("gets_calls"), runtime.newFixnum(counters.getsCalls.sum()));
+        stats.fastASet(runtime.newSymbol("read_calls"), runtime.newFixnum(counters.readCalls.sum()));
+        stats.fastASet(runtime.newSymbol("write_calls"), runtime.newFixnum(counters.writeCalls.sum()));
+        stats.fastASet(runtime.newSymbol("reallocations"), runtime.newFixnum(counters.reallocations.sum()));
+        stats.fastASet(runtime.newSymbol("bytes_copied"), runtime.newFixnum(counters.bytesCopied.sum()));
+        stats.fastASet(runtime.newSymbol("conversions"), runtime.newFixnum(counters.conversions.sum()));
+        stats.fastASet(runtime.newSymbol("lock_acquisitions"), runtime.newFixnum(counters.lockAcquisitions.sum()));
+        stats.fastASet(runtime.newSymbol("contended_spins"), runtime.newFixnum(counters.contendedSpins.sum()));
+        stats.fastASet(runtime.newSymbol("live_bytes"), runtime.newFixnum(counters.liveBytes()));
+        return stats;
+    }
+
+    @JRubyMethod(name = "stats_enabled?", meta = true)
+    public static IRubyObject stats_enabled_p(ThreadContext context, IRubyObject recv) {
+        return context.runtime.newBoolean(StringIOStats.of(context.runtime).enabled);
+    }
+
+    @JRubyMethod(name = "stats_enabled=", meta = true)
+    public static IRubyObject set_stats_enabled(ThreadContext context, IRubyObject recv, IRubyObject enabled) {
+        StringIOStats.of(context.runtime).enable(enabled.isTrue());
+        return enabled;
+    }
+
+    @JRubyMethod(meta = true)
+    public static IRubyObject reset_stats(ThreadContext context, IRubyObject recv) {
+        StringIOStats.of(context.runtime).resetCounters();
+        return context.nil;
+    }
+
+    private static BufferContent mapFile(ThreadContext context, RubyString path, int fmode) {
+        Ruby runtime = context.runtime;
+        boolean writable = (fmode & OpenFile.WRITABLE) != 0;
+        Path file = JRubyFile.create(runtime.getCurrentDirectory(), path.toString()).toPath();
+        List<StandardOpenOption> options = new ArrayList<>();
+        options.add(StandardOpenOption.READ);
+        if (writable) options.add(StandardOpenOption.WRITE);
+        if ((fmode & OpenFile.CREATE) != 0) options.add(StandardOpenOption.CREATE);
+        if ((fmode & OpenFile.TRUNC) != 0) options.add(StandardOpenOption.TRUNCATE_EXISTING);
+
+        try (FileChannel channel = FileChannel.open(file, options.toArray(new StandardOpenOption[0]))) {
+            FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+            long size = channel.size();
+            ByteBuffer[] segments = new ByteBuffer[(int) Math.max(1, (size + BufferContent.SEGMENT_SIZE - 1) >>> BufferContent.SEGMENT_SHIFT)];
+            for (int i = 0; i < segments.length; i++) {
+                long offset = (long) i << BufferContent.SEGMENT_SHIFT;
+                // mappings stay valid once the channel is closed
+                segments[i] = channel.map(mode, offset, Math.min(size - offset, BufferContent.SEGMENT_SIZE));
+            }
+            if (!writable) return BufferContent.of(segments);
+
+            return BufferContent.mapped(segments, new BufferContent.FileMapping() {
+                @Override
+                public ByteBuffer map(long offset, int length) {
+                    // mapping past the end of the file extends it
+                    try (FileChannel growing = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                        return growing.map(FileChannel.MapMode.READ_WRITE, offset, length);
+                    } catch (IOException e) {
+                        throw Helpers.newIOErrorFromException(runtime, e);
+                    }
+                }
+
+                @Override
+                public void setLength(long length) {
+                    try (FileChannel cutting = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                        cutting.truncate(length);
+                    } catch (IOException e) {
+                        // refused for a file still mapped on some platforms, which then keeps the room past the
+                        // content, as it does if the StringIO is never closed
+                    }
+                }
+            });
+        } catch (IOException e) {
+            throw Helpers.newIOErrorFromException(runtime, e);
+        }
+    }
+
     private static IRubyObject yieldOrReturn(ThreadContext context, Block block, StringIO strio) {
         IRubyObject val = strio;
 
@@ -268,7 +631,11 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
             try {
                 val = block.yield(context, strio);
             } finally {
-                strio.getPtrForWrite().string = null;
+                strio.trimMapping(context);
+                StringIOData ptr = strio.getRawPtrForWrite();
+                ptr.string = null;
+                ptr.buffer = null;
+                ptr.appends = null;
                 strio.flags &= ~STRIO_READWRITE;
             }
         }
@@ -277,13 +644,18 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
     }
 
     protected StringIO(Ruby runtime, RubyClass klass) {
+        this(runtime, klass, StringIOStats.of(runtime));
+    }
+
+    private StringIO(Ruby runtime, RubyClass klass, StringIOStats stats) {
         super(runtime, klass);
+        this.stats = stats;
     }
 
     @JRubyMethod(visibility = PRIVATE, keywords = true)
     public IRubyObject initialize(ThreadContext context) {
         if (ptr == null) {
-            ptr = new StringIOData();
+            ptr = new StringIOData(stats);
         }
 
         // does not dispatch quite right and is not really necessary for us
@@ -295,7 +667,7 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
     @JRubyMethod(visibility = PRIVATE, keywords = true)
     public IRubyObject initialize(ThreadContext context, IRubyObject arg0) {
         if (ptr == null) {
-            ptr = new StringIOData();
+            ptr = new StringIOData(stats);
         }
 
         // does not dispatch quite right and is not really necessary for us
@@ -307,7 +679,7 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
     @JRubyMethod(visibility = PRIVATE, keywords = true)
     public IRubyObject initialize(ThreadContext context, IRubyObject arg0, IRubyObject arg1) {
         if (ptr == null) {
-            ptr = new StringIOData();
+            ptr = new StringIOData(stats);
         }
 
         // does not dispatch quite right and is not really necessary for us
@@ -319,7 +691,7 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
     @JRubyMethod(visibility = PRIVATE, keywords = true)
     public IRubyObject initialize(ThreadContext context, IRubyObject arg0, IRubyObject arg1, IRubyObject arg2) {
         if (ptr == null) {
-            ptr = new StringIOData();
+            ptr = new StringIOData(stats);
         }
 
         // does not dispatch quite right and is not really necessary for us
@@ -330,13 +702,21 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
 
     // MRI: strio_init
     private void strioInit(ThreadContext context, int argc, IRubyObject arg0, IRubyObject arg1, IRubyObject arg2) {
+        strioInit(context, argc, arg0, arg1, arg2, null);
+    }
+
+    /**
+     * @param source if not null, gives the content to use in place of a string, given the parsed open flags
+     */
+    private void strioInit(ThreadContext context, int argc, IRubyObject arg0, IRubyObject arg1, IRubyObject arg2, IntFunction<BufferContent> source) {
         Ruby runtime = context.runtime;
         IRubyObject string = context.nil;
         IRubyObject vmode = context.nil;
 
-        StringIOData ptr = this.getPtrForWrite();
+        StringIOData ptr = this.getRawPtrForWrite();
+        if (ptr.stats.enabled) ptr.stats.track(ptr);
 
-        boolean locked = lock(context, ptr);
+        boolean locked = lock(context, ptr, "initialize");
         try {
             IRubyObject maybeOptions = context.nil;
             switch (argc) {
@@ -362,8 +742,27 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
                     }
                     break;
             }
+            int capacity = 0;
+            double growthFactor = 0;
+            int maxGrowth = 0;
             if (!maybeOptions.isNil()) {
                 argc--;
+                RubyHash options = (RubyHash) maybeOptions;
+                IRubyObject capacityOpt = options.fastARef(runtime.newSymbol("capacity"));
+                if (capacityOpt != null && !capacityOpt.isNil()) {
+                    capacity = RubyNumeric.num2int(capacityOpt);
+                    if (capacity < 0) throw runtime.newArgumentError("negative capacity");
+                }
+                IRubyObject growthFactorOpt = options.fastARef(runtime.newSymbol("growth_factor"));
+                if (growthFactorOpt != null && !growthFactorOpt.isNil()) {
+                    growthFactor = RubyNumeric.num2dbl(growthFactorOpt);
+                    if (!(growthFactor > 1.0)) throw runtime.newArgumentError("growth_factor must be greater than 1");
+                }
+                IRubyObject maxGrowthOpt = options.fastARef(runtime.newSymbol("max_growth"));
+                if (maxGrowthOpt != null && !maxGrowthOpt.isNil()) {
+                    maxGrowth = RubyNumeric.num2int(maxGrowthOpt);
+                    if (maxGrowth <= 0) throw runtime.newArgumentError("max_growth must be positive");
+                }
             }
             Object vmodeAndVpermP = VMODE_VPERM_TL.get();
             EncodingUtils.vmode(vmodeAndVpermP, vmode);
@@ -378,16 +777,28 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
             // clear shared vmodeVperm
             clearVmodeVperm(vmodeAndVpermP);
 
-            if (!string.isNil()) {
+            BufferContent buffer = null;
+            if (source != null) {
+                buffer = source.apply(ptr.flags);
+            } else if (string instanceof JavaProxy && ((JavaProxy) string).getObject() instanceof ByteBuffer) {
+                buffer = new BufferContent((ByteBuffer) ((JavaProxy) string).getObject());
+                string = context.nil;
+            } else if (!string.isNil()) {
                 string = string.convertToString();
             } else if (argc == 0) {
                 string = RubyString.newEmptyString(runtime, runtime.getDefaultExternalEncoding());
             }
+            ptr.appends = null;
+            ptr.appendChunks = argc == 0;
 
             if (!string.isNil() && string.isFrozen()) {
                 if ((ptr.flags & OpenFile.WRITABLE) != 0) {
                     throw runtime.newErrnoEACCESError("read-only string");
                 }
+            } else if (buffer != null && buffer.isReadOnly()) {
+                if ((ptr.flags & OpenFile.WRITABLE) != 0) {
+                    throw runtime.newErrnoEACCESError("read-only buffer");
+                }
             } else {
                 if (vmode.isNil()) {
                     ptr.flags |= OpenFile.WRITABLE;
@@ -399,13 +810,28 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
             if (string instanceof RubyString) {
                 ptr.string = (RubyString) string;
             }
+            if (ptr.buffer != null) ptr.buffer.trim();
+            ptr.buffer = null;
+            if (buffer != null) {
+                ptr.string = null;
+                ptr.buffer = buffer;
+                if ((ptr.flags & OpenFile.TRUNC) != 0) ptr.buffer.clear();
+            }
             if (argc == 1 && !string.isNil()) {
                 ptr.enc = ((RubyString) string).getEncoding();
+            } else if (buffer != null && ioEncodable.enc == null) {
+                // bytes from outside, read as a File would read them
+                ptr.enc = runtime.getDefaultExternalEncoding();
             } else {
                 ptr.enc = ioEncodable.enc;
             }
             ptr.pos = 0;
             ptr.lineno = 0;
+            ptr.growthFactor = growthFactor;
+            ptr.maxGrowth = maxGrowth;
+            if (capacity > 0 && string instanceof RubyString && (ptr.flags & OpenFile.WRITABLE) != 0) {
+                growString((RubyString) string, capacity);
+            }
             if ((ptr.flags & OpenFile.SETENC_BY_BOM) != 0) set_encoding_by_bom(context);
             // funky way of shifting readwrite flags into object flags
             flags |= (ptr.flags & OpenFile.READWRITE) * (STRIO_READABLE / OpenFile.READABLE);
@@ -422,17 +848,62 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
 
         if (this == otherIO) return this;
 
-        ptr = otherIO.getPtrForRead();
+        ptr = otherIO.getRawPtrForRead();
         flags = (byte) (flags & ~STRIO_READWRITE | otherIO.flags & STRIO_READWRITE);
 
         return this;
     }
 
+    /**
+     * StringIO#cursor -> strio
+     *
+     * A read-only StringIO over the content as it is now, starting from the beginning with its own position, lineno
+     * and lock, so that several threads can each read one payload without fighting over a cursor. The cursor reads a
+     * {@link #snapshot} of the String, so nothing is copied until a write through this StringIO would change its bytes
+     * in place, and later writes do not show through. A cursor over a ByteBuffer or mapped file reads the same memory
+     * instead, up to the size the content had when it was created, and sees writes made before that size.
+     */
+    @JRubyMethod(name = "cursor")
+    public IRubyObject cursor(ThreadContext context) {
+        checkReadable();
+        StringIOData ptr = getRawPtrForRead();
+
+        boolean locked = lock(context, ptr, "cursor");
+        try {
+            return newCursor(context.runtime, ptr, 0);
+        } finally {
+            if (locked) unlock(ptr);
+        }
+    }
+
+    // a cursor over the content of ptr as it is now, starting at pos; must be called under lock
+    private StringIO newCursor(Ruby runtime, StringIOData ptr, long pos) {
+        if (ptr.appends != null) {
+            // the cursor gets its own String, so appends can go on being chunked
+            boolean appendChunks = ptr.appendChunks;
+            flushAppends(ptr);
+            ptr.appendChunks = appendChunks;
+        }
+
+        StringIOData data = new StringIOData(stats);
+        data.string = ptr.string == null ? null : shareString(runtime, ptr);
+        data.buffer = ptr.buffer == null ? null : ptr.buffer.view();
+        data.enc = ptr.enc;
+        data.pos = pos;
+        data.flags = OpenFile.READABLE;
+
+        StringIO cursor = new StringIO(runtime, getMetaClass().getRealClass(), stats);
+        cursor.ptr = data;
+        cursor.flags = STRIO_READABLE;
+
+        return cursor;
+    }
+
     @JRubyMethod
     public IRubyObject binmode(ThreadContext context) {
-        StringIOData ptr = this.getPtrForWrite();
+        StringIOData ptr = this.getRawPtrForWrite();
         ptr.enc = EncodingUtils.ascii8bitEncoding(context.runtime);
-        if (writable()) ptr.string.setEncoding(ptr.enc);
+        if (writable() && ptr.string != null) ptr.string.setEncoding(ptr.enc);
 
         return this;
     }
@@ -473,12 +944,27 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
         checkInitialized();
         if ( closed() ) return context.nil;
 
+        trimMapping(context);
+
         // NOTE: This is 2.0 behavior to allow dup'ed StringIO to remain open when original is closed
         flags &= ~STRIO_READWRITE;
 
         return context.nil;
     }
 
+    // cut the file under a writable mapping back to the content, see map
+    private void trimMapping(ThreadContext context) {
+        StringIOData ptr = getRawPtrForWrite();
+        if (ptr.buffer == null) return;
+
+        boolean locked = lock(context, ptr, "close");
+        try {
+            if (ptr.buffer != null) ptr.buffer.trim();
+        } finally {
+            if (locked) unlock(ptr);
+        }
+    }
+
     @JRubyMethod(name = "closed?")
     public IRubyObject closed_p() {
         checkInitialized();
@@ -489,7 +975,7 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
     public IRubyObject close_read(ThreadContext context) {
         // ~ checkReadable() :
         checkInitialized();
-        if ( (getPtrForWrite().flags & OpenFile.READABLE) == 0 ) {
+        if ( (getRawPtrForWrite().flags & OpenFile.READABLE) == 0 ) {
             throw context.runtime.newIOError("not opened for reading");
         }
         int flags = this.flags;
@@ -509,9 +995,10 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
     public IRubyObject close_write(ThreadContext context) {
         // ~ checkWritable() :
         checkInitialized();
-        if ( (getPtrForWrite().flags & OpenFile.WRITABLE) == 0 ) {
+        if ( (getRawPtrForWrite().flags & OpenFile.WRITABLE) == 0 ) {
             throw context.runtime.newIOError("not opened for writing");
         }
+        trimMapping(context);
         int flags = this.flags;
         if ( ( flags & STRIO_WRITABLE ) != 0 ) {
             this.flags = (byte) (flags & ~STRIO_WRITABLE);
@@ -619,113 +1106,606 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
         }
     }
 
-    @JRubyMethod(name = {"each_byte"})
-    public IRubyObject each_byte(ThreadContext context, Block block) {
-        Ruby runtime = context.runtime;
+    /**
+     * Like each_line, but also yields the byte offset at which each line starts.
+     */
+    @JRubyMethod(name = "each_line_with_offset", optional = 3)
+    public IRubyObject each_line_with_offset(ThreadContext context, IRubyObject[] args, Block block) {
+        if (!block.isGiven()) return enumeratorize(context.runtime, this, "each_line_with_offset", args);
 
-        if (!block.isGiven()) return enumeratorize(runtime, this, "each_byte");
+        IRubyObject arg0 = args.length > 0 ? args[0] : null;
+        IRubyObject arg1 = args.length > 1 ? args[1] : null;
+        IRubyObject arg2 = args.length > 2 ? args[2] : null;
 
-        checkReadable();
-        StringIOData ptr = this.getPtrForWrite();
+        return Getline.getlineCall(context, GETLINE_YIELD_OFFSET, this, getEncoding(), args.length, arg0, arg1, arg2, block);
+    }
 
-        boolean locked = lock(context, ptr);
-        try {
-            ByteList bytes = ptr.string.getByteList();
+    /**
+     * StringIO#each_line_parallel(sep = $/, chomp: false, parallelism: nil) {|line| ... } -> strio
+     *
+     * Yield every remaining line, as each_line with a separator would, from several threads at once and in no
+     * particular order. The content is cut at separators into chunks that a ForkJoinPool reads side by side, each
+     * through a cursor of its own, so the block must be safe to call concurrently. parallelism sets the number of
+     * threads, by default as many as the common pool has, in a pool the runtime keeps for each parallelism and shuts
+     * down with itself. The block runs on the pool's threads, which JRuby adopts as Ruby threads the first time they
+     * call it and which stay in Thread.list while the pool keeps them, so it cannot break out of the iteration: break
+     * or return raise LocalJumpError instead. Afterwards the position is at
+     * the end and lineno has counted every line; if this StringIO was repositioned or given other content while the
+     * lines were read, ConcurrencyError is raised instead.
+     */
+    @JRubyMethod(name = "each_line_parallel", optional = 2, keywords = true)
+    public IRubyObject each_line_parallel(ThreadContext context, IRubyObject[] args, Block block) {
+        if (!block.isGiven()) throw context.runtime.newLocalJumpErrorNoBlock();
 
-            // Check the length every iteration, since
-            // the block can modify this string.
-            while (ptr.pos < bytes.length()) {
-                // check readability for each loop, since it could get closed
-                checkReadable();
-                block.yield(context, runtime.newFixnum(bytes.get(ptr.pos++) & 0xFF));
-            }
-        } finally {
-            if (locked) unlock(ptr);
-        }
+        readLinesParallel(context, args, 1, chunk -> {}, (ctx, chunk, line) -> block.yieldSpecific(ctx, line));
 
         return this;
     }
 
-    @JRubyMethod
-    public IRubyObject each_char(final ThreadContext context, final Block block) {
-        if (!block.isGiven()) return enumeratorize(context.runtime, this, "each_char");
+    /**
+     * StringIO#map_lines_parallel(sep = $/, chomp: false, parallelism: nil, ordered: true) {|line| ... } -> array
+     *
+     * The results of the block for every remaining line, computed as each_line_parallel yields them. They come in
+     * the order of the lines, or with ordered: false in the order the chunks holding them were finished.
+     */
+    @JRubyMethod(name = "map_lines_parallel", optional = 2, keywords = true)
+    public IRubyObject map_lines_parallel(ThreadContext context, IRubyObject[] args, Block block) {
+        Ruby runtime = context.runtime;
+        if (!block.isGiven()) throw runtime.newLocalJumpErrorNoBlock();
 
-        IRubyObject c;
-        while (!(c = getc(context)).isNil()) {
-            block.yieldSpecific(context, c);
-        }
-        return this;
-    }
+        IRubyObject orderedOpt = parallelOption(context, args, "ordered");
+        boolean ordered = orderedOpt == null || orderedOpt.isTrue();
 
-    @JRubyMethod(name = {"eof", "eof?"})
-    public IRubyObject eof(ThreadContext context) {
-        checkReadable();
-        StringIOData ptr = this.getPtrForRead();
-        if (!isEndOfString()) return context.fals;
-        return context.tru;
-    }
+        // each chunk collects the values of its own lines
+        LineChunk[] chunks = readLinesParallel(context, args, 1,
+                chunk -> chunk.result = RubyArray.newArray(runtime),
+                (ctx, chunk, line) -> ((RubyArray<?>) chunk.result).append(block.yieldSpecific(ctx, line)));
 
-    private boolean isEndOfString() {
-        return isOutside(ptr.pos);
-    }
+        if (!ordered) Arrays.sort(chunks, (a, b) -> Integer.compare(a.finished, b.finished));
 
-    private boolean isOutside(int pos) {
-        StringIOData ptr = getPtrForRead();
-        return ptr.string == null || pos >= ptr.string.size();
-    }
+        int size = 0;
+        for (LineChunk chunk : chunks) size += ((RubyArray<?>) chunk.result).size();
+        RubyArray<?> ary = RubyArray.newArray(runtime, size);
+        for (LineChunk chunk : chunks) ary.concat(context, chunk.result);
 
-    @JRubyMethod(name = "getc")
-    public IRubyObject getc(ThreadContext context) {
-        checkReadable();
+        return ary;
+    }
 
-        if (isEndOfString()) return context.nil;
+    /**
+     * StringIO#reduce_lines_parallel(init, sep = $/, chomp: false, parallelism: nil, combine: :+) {|acc, line| ... } -> object
+     *
+     * Fold the remaining lines as each_line_parallel yields them. Each chunk is folded on its own, starting from a
+     * dup of init, and the results of the chunks are then combined in the order of the content, with the method
+     * combine names or, if it is not a Symbol, by calling it with both.
+     */
+    @JRubyMethod(name = "reduce_lines_parallel", required = 1, optional = 2, keywords = true)
+    public IRubyObject reduce_lines_parallel(ThreadContext context, IRubyObject[] args, Block block) {
+        Ruby runtime = context.runtime;
+        if (!block.isGiven()) throw runtime.newLocalJumpErrorNoBlock();
 
-        StringIOData ptr = this.getPtrForWrite();
+        IRubyObject init = args[0];
+        IRubyObject combine = parallelOption(context, args, "combine");
+        if (combine == null) combine = runtime.newSymbol("+");
 
-        boolean locked = lock(context, ptr);
-        try {
-            int start = ptr.pos;
-            RubyString string = ptr.string;
-            int total = 1 + StringSupport.bytesToFixBrokenTrailingCharacter(string.getByteList(), start + 1);
+        // each chunk folds its own lines into its own accumulator
+        LineChunk[] chunks = readLinesParallel(context, args, 2,
+                chunk -> chunk.result = init.callMethod(context, "dup"),
+                (ctx, chunk, line) -> chunk.result = block.yieldSpecific(ctx, chunk.result, line));
 
-            ptr.pos += total;
+        if (chunks.length == 0) return init;
 
-            return context.runtime.newString(string.getByteList().makeShared(start, total));
-        } finally {
-            if (locked) unlock(ptr);
+        IRubyObject result = chunks[0].result;
+        for (int i = 1; i < chunks.length; i++) {
+            if (combine instanceof RubySymbol) {
+                result = result.callMethod(context, combine.asJavaString(), chunks[i].result);
+            } else {
+                result = combine.callMethod(context, "call", new IRubyObject[] {result, chunks[i].result});
+            }
         }
+
+        return result;
     }
 
-    @JRubyMethod(name = "getbyte")
-    public IRubyObject getbyte(ThreadContext context) {
+    // chunks are cut no smaller than this, so that small content is not spread over threads that each read a few lines
+    private static final int PARALLEL_CHUNK_MIN = 1 << 16;
+
+    // called by the chunks of readLinesParallel, from the thread reading the chunk, with each line in it
+    private interface LineConsumer {
+        void accept(ThreadContext context, LineChunk chunk, IRubyObject line);
+    }
+
+    // the option named key given to a *_lines_parallel method, or null
+    private static IRubyObject parallelOption(ThreadContext context, IRubyObject[] args, String key) {
+        IRubyObject options = ArgsUtil.getOptionsArg(context.runtime, args);
+        if (options.isNil()) return null;
+
+        IRubyObject value = ((RubyHash) options).fastARef(context.runtime.newSymbol(key));
+        return value == null || value.isNil() ? null : value;
+    }
+
+    /**
+     * Read the remaining lines for the *_lines_parallel methods, whose arguments are args with at most max of them
+     * before the options. The content from the position on is cut right after separators into about four chunks
+     * per thread, each read by a cursor over it (see cursor). A nil separator, paragraph mode and a separator that
+     * could overlap itself leave a single chunk, read in the calling thread, since where their lines end depends
+     * on where the reading started.
+     *
+     * @param prepare called with each chunk in the calling thread, before any of them is read
+     * @return the chunks, in the order of the content
+     */
+    private LineChunk[] readLinesParallel(ThreadContext context, IRubyObject[] args, int max, Consumer<LineChunk> prepare, LineConsumer consumer) {
+        Ruby runtime = context.runtime;
         checkReadable();
 
-        if (isEndOfString()) return context.nil;
+        IRubyObject options = ArgsUtil.getOptionsArg(runtime, args);
+        int positional = options.isNil() ? args.length : args.length - 1;
+        if (positional > max) Arity.raiseArgumentError(context, args.length, max - 1, max);
 
-        int c;
-        StringIOData ptr = this.getPtrForWrite();
-        boolean locked = lock(context, ptr);
+        int parallelism = 0;
+        IRubyObject parallelismOpt = parallelOption(context, args, "parallelism");
+        if (parallelismOpt != null) {
+            parallelism = RubyNumeric.num2int(parallelismOpt);
+            if (parallelism <= 0) throw runtime.newArgumentError("parallelism must be positive");
+        }
+
+        // the separator and chomp, as getline takes them
+        RubyArray<?> separator;
+        if (positional == max) {
+            separator = options.isNil() ?
+                    Getline.getlineCall(context, GETLINE_SEPARATOR, this, getEncoding(), args[max - 1]) :
+                    Getline.getlineCall(context, GETLINE_SEPARATOR, this, getEncoding(), args[max - 1], options);
+        } else {
+            separator = options.isNil() ?
+                    Getline.getlineCall(context, GETLINE_SEPARATOR, this, getEncoding()) :
+                    Getline.getlineCall(context, GETLINE_SEPARATOR, this, getEncoding(), options);
+        }
+        IRubyObject rs = separator.eltInternal(0);
+        boolean chomp = separator.eltInternal(1).isTrue();
+
+        int threads = parallelism > 0 ? parallelism : ForkJoinPool.getCommonPoolParallelism();
+        AtomicBoolean failed = new AtomicBoolean();
+        AtomicInteger finished = new AtomicInteger();
+        StringIOData ptr = getPtrOrBufferForRead();
+        LineChunk[] chunks;
+        long start, end;
+        RubyString string;
+        BufferContent buffer;
+
+        boolean locked = lock(context, ptr, "each_line_parallel");
         try {
-            c = ptr.string.getByteList().get(ptr.pos++) & 0xFF;
+            start = ptr.pos;
+            string = ptr.string;
+            buffer = ptr.buffer;
+            long[] bounds = lineChunks(ptr, rs, threads * 4);
+            chunks = new LineChunk[bounds.length - 1];
+            for (int i = 0; i < chunks.length; i++) {
+                chunks[i] = new LineChunk(runtime, newCursor(runtime, ptr, bounds[i]), bounds[i + 1], rs, chomp, consumer, failed, finished);
+            }
+            end = bounds[bounds.length - 1];
         } finally {
             if (locked) unlock(ptr);
         }
 
-        return context.runtime.newFixnum(c);
-    }
+        for (LineChunk chunk : chunks) prepare.accept(chunk);
 
-    // MRI: strio_substr
-    // must be called under lock
-    private RubyString strioSubstr(Ruby runtime, int pos, int len, Encoding enc) {
-        StringIOData ptr = this.getPtrForRead();
+        if (chunks.length == 1) {
+            chunks[0].invoke();
+        } else if (chunks.length > 1) {
+            ForkJoinPool pool = ParallelPools.of(runtime).get(runtime, threads);
+            ForkJoinTask<?> all = pool.submit(() -> ForkJoinTask.invokeAll(chunks));
+            try {
+                while (!all.isDone()) {
+                    try {
+                        context.getThread().executeTask(context, all, JOIN);
+                    } catch (InterruptedException e) {
+                        // the events that interrupted us are polled next
+                    }
 
-        final RubyString string = ptr.string;
-        int rlen = string.size() - pos;
+                    // let Thread#raise and Thread#kill through
+                    context.pollThreadEvents();
+                }
+            } finally {
+                if (!all.isDone()) {
+                    // the chunks still running stop at their next line
+                    failed.set(true);
+                    for (LineChunk chunk : chunks) chunk.cancel(false);
+                }
+            }
+        }
+
+        long lines = 0;
+        for (LineChunk chunk : chunks) {
+            Throwable failure = chunk.failure;
+            if (failure instanceof IRBreakJump) {
+                throw runtime.newLocalJumpError(RubyLocalJumpError.Reason.BREAK, ((IRBreakJump) failure).breakValue, "break from proc-closure");
+            } else if (failure instanceof IRReturnJump) {
+                throw runtime.newLocalJumpError(RubyLocalJumpError.Reason.RETURN, context.nil, "unexpected return");
+            } else if (failure != null) {
+                Helpers.throwException(failure);
+            }
+            lines += chunk.lines;
+        }
+
+        locked = lock(context, ptr, "each_line_parallel");
+        try {
+            if (ptr.pos != start || ptr.string != string || ptr.buffer != buffer) {
+                throw runtime.newConcurrencyError("StringIO was repositioned while its lines were read in parallel");
+            }
+            ptr.pos = end;
+            ptr.lineno += (int) lines;
+        } finally {
+            if (locked) unlock(ptr);
+        }
+
+        return chunks;
+    }
+
+    // waits for the chunks of readLinesParallel, until the Ruby thread is interrupted
+    private static final RubyThread.Task<ForkJoinTask<?>, Object> JOIN = new RubyThread.Task<ForkJoinTask<?>, Object>() {
+        @Override
+        public Object run(ThreadContext context, ForkJoinTask<?> all) throws InterruptedException {
+            try {
+                return all.get();
+            } catch (ExecutionException e) {
+                // the chunks keep their own failures
+                return null;
+            }
+        }
+
+        @Override
+        public void wakeup(RubyThread thread, ForkJoinTask<?> all) {
+            thread.getNativeThread().interrupt();
+        }
+    };
+
+    /**
+     * Offsets cutting the content from the position on into about count chunks, each ending right after a
+     * separator or at the end of the content; none at all at the end of the content. Must be called under lock.
+     */
+    private static long[] lineChunks(StringIOData ptr, IRubyObject rs, int count) {
+        long start = ptr.pos;
+        long size = contentSize(ptr);
+        if (start >= size) return new long[] {start};
+
+        long target = Math.max(PARALLEL_CHUNK_MIN, (size - start) / count);
+        if (size - start <= target || !isSplittable(rs)) return new long[] {start, size};
+
+        // each chunk is at least target bytes, so there are at most count + 1 of them
+        ByteList sep = ((RubyString) rs).getByteList();
+        long[] bounds = new long[count + 2];
+        int n = 0;
+        bounds[n++] = start;
+        for (long p = start; p < size; ) {
+            p = p + target >= size ? size : lineEnd(ptr, p + target, size, sep);
+            bounds[n++] = p;
+        }
+
+        return Arrays.copyOf(bounds, n);
+    }
+
+    /**
+     * Whether the lines rs separates can be told apart from anywhere in the content: not for paragraph mode or a
+     * nil separator, nor for a separator that starts the way it ends, since one of its matches could then overlap
+     * another and which of them ends a line depends on where the reading started.
+     */
+    private static boolean isSplittable(IRubyObject rs) {
+        if (!(rs instanceof RubyString)) return false;
+
+        ByteList sep = ((RubyString) rs).getByteList();
+        byte[] bytes = sep.getUnsafeBytes();
+        int begin = sep.getBegin();
+        int len = sep.getRealSize();
+        if (len == 0) return false;
+
+        for (int k = 1; k < len; k++) {
+            if (ByteList.memcmp(bytes, begin, bytes, begin + len - k, k) == 0) return false;
+        }
+
+        return true;
+    }
+
+    // the offset right after the first sep found from from on, or size if there is none; must be called under lock
+    private static long lineEnd(StringIOData ptr, long from, long size, ByteList sep) {
+        byte[] sepBytes = sep.getUnsafeBytes();
+        int sepBegin = sep.getBegin();
+        int sepLen = sep.getRealSize();
+        long p;
+
+        BufferContent buffer = ptr.buffer;
+        if (buffer != null) {
+            p = sepLen == 1 ?
+                    buffer.indexOf(from, size, sepBytes[sepBegin]) :
+                    buffer.indexOf(from, size, sepBytes, sepBegin, sepLen);
+        } else {
+            ByteList string = ptr.string.getByteList();
+            byte[] bytes = string.getUnsafeBytes();
+            int begin = string.getBegin();
+            int s = begin + (int) from;
+            int e = begin + (int) size;
+            int q = sepLen == 1 ?
+                    ByteScanner.indexOf(bytes, s, e, sepBytes[sepBegin]) :
+                    ByteScanner.indexOf(bytes, s, e, sepBytes, sepBegin, sepLen);
+            p = q == -1 ? -1 : q - begin;
+        }
+
+        return p == -1 ? size : p + sepLen;
+    }
+
+    /**
+     * The lines of one chunk of readLinesParallel, read through a cursor from its start up to end. A failure,
+     * Ruby exception or not, is kept to be raised by the calling thread, and stops the other chunks at their next
+     * line.
+     */
+    @SuppressWarnings("serial")
+    private static final class LineChunk extends RecursiveAction {
+        private final Ruby runtime;
+        private final StringIO reader;
+        private final long end;
+        private final IRubyObject rs;
+        private final boolean chomp;
+        private final LineConsumer consumer;
+        private final AtomicBoolean failed;
+        private final AtomicInteger finishing;
+        long lines;
+        Throwable failure;
+        // what the consumer keeps for this chunk, which only the thread reading it touches meanwhile
+        IRubyObject result;
+        // the order in which the chunk was finished among the others
+        int finished;
+
+        LineChunk(Ruby runtime, StringIO reader, long end, IRubyObject rs, boolean chomp, LineConsumer consumer,
+                  AtomicBoolean failed, AtomicInteger finishing) {
+            this.runtime = runtime;
+            this.reader = reader;
+            this.end = end;
+            this.rs = rs;
+            this.chomp = chomp;
+            this.consumer = consumer;
+            this.failed = failed;
+            this.finishing = finishing;
+        }
+
+        @Override
+        protected void compute() {
+            ThreadContext context = runtime.getCurrentContext();
+            StringIOData ptr = reader.ptr;
+            int[] skip = null;
+            if (rs instanceof RubyString && ((RubyString) rs).size() > ByteScanner.SEPARATOR_MAX) {
+                skip = separatorSkip(((RubyString) rs).getByteList());
+            }
+
+            long start = ptr.pos;
+
+            boolean locked = lock(context, ptr, "each_line_parallel");
+            try {
+                IRubyObject line;
+                while (ptr.pos < end && !failed.get() && !(line = reader.getlineLocked(context, ptr, rs, -1, chomp, skip)).isNil()) {
+                    lines++;
+                    consumer.accept(context, this, line);
+                }
+            } catch (Throwable t) {
+                failure = t;
+                failed.set(true);
+            } finally {
+                if (ptr.stats.enabled) ptr.stats.bytesRead.add(ptr.pos - start);
+                if (locked) unlock(ptr);
+                finished = finishing.getAndIncrement();
+            }
+        }
+    }
+
+    @JRubyMethod(name = {"each_byte"})
+    public IRubyObject each_byte(ThreadContext context, Block block) {
+        Ruby runtime = context.runtime;
+
+        if (!block.isGiven()) return enumeratorize(runtime, this, "each_byte");
+
+        checkReadable();
+        StringIOData ptr = this.getPtrOrBufferForWrite();
+
+        boolean locked = lock(context, ptr, "each_byte");
+        try {
+            if (ptr.buffer != null) {
+                // the block may write past the end of the buffer, leaving a String in its place
+                while (ptr.pos < contentSize(ptr)) {
+                    checkReadable();
+                    block.yield(context, runtime.newFixnum(contentByte(ptr, ptr.pos++)));
+                }
+                return this;
+            }
+
+            ByteList bytes = ptr.string.getByteList();
+
+            // Check the length every iteration, since
+            // the block can modify this string.
+            while (ptr.pos < bytes.length()) {
+                // check readability for each loop, since it could get closed
+                checkReadable();
+                block.yield(context, runtime.newFixnum(bytes.get((int) ptr.pos++) & 0xFF));
+            }
+        } finally {
+            if (locked) unlock(ptr);
+        }
+
+        return this;
+    }
+
+    /**
+     * Yields the same strings getc would, under a single lock. While the string is 7-bit every character is a
+     * single byte, and is handed out over a shared one-byte array rather than a slice pinning the whole buffer.
+     */
+    @JRubyMethod
+    public IRubyObject each_char(final ThreadContext context, final Block block) {
+        Ruby runtime = context.runtime;
+
+        if (!block.isGiven()) return enumeratorize(runtime, this, "each_char");
+
+        checkReadable();
+
+        StringIOData ptr = this.getPtrOrBufferForWrite();
+
+        boolean locked = lock(context, ptr, "each_char");
+        try {
+            // settle the code range once up front, so the loop only has to read it back
+            if (ptr.string != null) ptr.string.scanForCodeRange();
+
+            while (!isEndOfString()) {
+                RubyString c;
+
+                if (ptr.buffer != null) {
+                    c = getcBuffer(context, ptr);
+                } else {
+                    RubyString string = ptr.string;
+                    ByteList bytes = string.getByteList();
+                    int start = (int) ptr.pos;
+
+                    int b = bytes.get(start);
+                    if (b < 0x80 && string.getCodeRange() == StringSupport.CR_7BIT) {
+                        ptr.pos = start + 1;
+                        c = asciiChar(runtime, b, bytes.getEncoding());
+                    } else {
+                        int total = charLength(bytes, start);
+                        ptr.pos = start + total;
+                        c = runtime.newString(bytes.makeShared(start, total));
+                    }
+                }
+
+                block.yieldSpecific(context, c);
+
+                checkReadable();
+                if (this.ptr != ptr) {
+                    if (locked) unlock(ptr);
+                    locked = false;
+                    ptr = this.ptr;
+                    locked = lock(context, ptr, "each_char");
+                }
+            }
+        } finally {
+            if (locked) unlock(ptr);
+        }
+
+        return this;
+    }
+
+    private static final byte[][] SINGLE_BYTES = new byte[128][];
+    static {
+        for (int i = 0; i < SINGLE_BYTES.length; i++) SINGLE_BYTES[i] = new byte[] {(byte) i};
+    }
+
+    private static RubyString asciiChar(Ruby runtime, int b, Encoding enc) {
+        RubyString c = RubyString.newStringShared(runtime, SINGLE_BYTES[b], 0, 1, enc);
+        c.setCodeRange(StringSupport.CR_7BIT);
+        return c;
+    }
+
+    @JRubyMethod(name = {"eof", "eof?"})
+    public IRubyObject eof(ThreadContext context) {
+        checkReadable();
+        if (!isEndOfString()) return context.fals;
+        return context.tru;
+    }
+
+    private boolean isEndOfString() {
+        return isOutside(ptr.pos);
+    }
+
+    private boolean isOutside(long pos) {
+        StringIOData ptr = getRawPtrForRead();
+        return !hasContent(ptr) || pos >= contentSize(ptr);
+    }
+
+    @JRubyMethod(name = "getc")
+    public IRubyObject getc(ThreadContext context) {
+        checkReadable();
+
+        if (isEndOfString()) return context.nil;
+
+        StringIOData ptr = this.getPtrOrBufferForWrite();
+
+        boolean locked = lock(context, ptr, "getc");
+        try {
+            if (ptr.buffer != null) return getcBuffer(context, ptr);
+
+            int start = (int) ptr.pos;
+            RubyString string = ptr.string;
+            int total = charLength(string.getByteList(), start);
+
+            ptr.pos += total;
+
+            return context.runtime.newString(string.getByteList().makeShared(start, total));
+        } finally {
+            if (locked) unlock(ptr);
+        }
+    }
+
+    // getc for a StringIO over a ByteBuffer; must be called under lock with pos inside the content
+    private RubyString getcBuffer(ThreadContext context, StringIOData ptr) {
+        Encoding enc = getEncoding();
+        BufferContent buffer = ptr.buffer;
+        long start = ptr.pos;
+        int b = buffer.get(start);
+        if (b < 0x80 && enc.isAsciiCompatible()) {
+            ptr.pos++;
+            return asciiChar(context.runtime, b, enc);
+        }
+
+        byte[] bytes = charBytes(buffer, start, enc);
+        int total = StringSupport.length(enc, bytes, 0, bytes.length);
+
+        ptr.pos += total;
+
+        return RubyString.newString(context.runtime, new ByteList(bytes, 0, total, enc, false));
+    }
+
+    // the codepoint of enc at start in buffer, raising ArgumentError if the bytes there are invalid
+    private static int codePointBuffer(Ruby runtime, BufferContent buffer, long start, Encoding enc) {
+        byte[] bytes = charBytes(buffer, start, enc);
+        return StringSupport.codePoint(runtime, enc, bytes, 0, bytes.length);
+    }
+
+    // the bytes from start on that can make up a single character of enc
+    private static byte[] charBytes(BufferContent buffer, long start, Encoding enc) {
+        return buffer.bytes(start, (int) Math.min(enc.maxLength(), buffer.size() - start));
+    }
+
+    // MRI: rb_enc_mbclen, as used by strio_getc; a broken character counts as its first byte
+    private static int charLength(ByteList bytes, int start) {
+        int begin = bytes.getBegin();
+        return StringSupport.length(bytes.getEncoding(), bytes.getUnsafeBytes(), begin + start, begin + bytes.getRealSize());
+    }
 
-        if (len > rlen) len = rlen;
+    @JRubyMethod(name = "getbyte")
+    public IRubyObject getbyte(ThreadContext context) {
+        checkReadable();
+
+        if (isEndOfString()) return context.nil;
+
+        int c;
+        StringIOData ptr = this.getPtrOrBufferForWrite();
+        boolean locked = lock(context, ptr, "getbyte");
+        try {
+            c = contentByte(ptr, ptr.pos++);
+        } finally {
+            if (locked) unlock(ptr);
+        }
+
+        return context.runtime.newFixnum(c);
+    }
+
+    // MRI: strio_substr
+    // must be called under lock
+    private RubyString strioSubstr(Ruby runtime, long pos, int len, Encoding enc) {
+        StringIOData ptr = this.getPtrOrBufferForRead();
+
+        long rlen = contentSize(ptr) - pos;
+
+        if (len > rlen) len = (int) rlen;
         if (len < 0) len = 0;
         if (len == 0) return RubyString.newEmptyString(runtime, enc);
-        return encSubseq(runtime, string, pos, len, enc);
+        if (ptr.buffer != null) {
+            return RubyString.newString(runtime, new ByteList(ptr.buffer.bytes(pos, len), enc, false));
+        }
+        return encSubseq(runtime, ptr.string, (int) pos, len, enc);
     }
 
     // MRI: enc_subseq
@@ -749,7 +1729,7 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
     }
 
     // Note that this is substantially more complex in 2.0 (Onigmo)
-    private static int bm_search(byte[] little, int lstart, int llen, byte[] big, int bstart, int blen, int[] skip) {
+    static int bm_search(byte[] little, int lstart, int llen, byte[] big, int bstart, int blen, int[] skip) {
         int i, j, k;
 
         i = llen - 1;
@@ -768,25 +1748,25 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
 
     @JRubyMethod(name = "gets", writes = FrameField.LASTLINE)
     public IRubyObject gets(ThreadContext context) {
-        if (getPtrForWrite().string == null) return context.nil;
+        if (!hasContent(getRawPtrForWrite())) return context.nil;
         return Getline.getlineCall(context, GETLINE, this, getEncoding());
     }
 
     @JRubyMethod(name = "gets", writes = FrameField.LASTLINE)
     public IRubyObject gets(ThreadContext context, IRubyObject arg0) {
-        if (getPtrForWrite().string == null) return context.nil;
+        if (!hasContent(getRawPtrForWrite())) return context.nil;
         return Getline.getlineCall(context, GETLINE, this, getEncoding(), arg0);
     }
 
     @JRubyMethod(name = "gets", writes = FrameField.LASTLINE)
     public IRubyObject gets(ThreadContext context, IRubyObject arg0, IRubyObject arg1) {
-        if (getPtrForWrite().string == null) return context.nil;
+        if (!hasContent(getRawPtrForWrite())) return context.nil;
         return Getline.getlineCall(context, GETLINE, this, getEncoding(), arg0, arg1);
     }
 
     @JRubyMethod(name = "gets", writes = FrameField.LASTLINE)
     public IRubyObject gets(ThreadContext context, IRubyObject arg0, IRubyObject arg1, IRubyObject arg2) {
-        if (getPtrForWrite().string == null) return context.nil;
+        if (!hasContent(getRawPtrForWrite())) return context.nil;
         return Getline.getlineCall(context, GETLINE, this, getEncoding(), arg0, arg1, arg2);
     }
 
@@ -810,7 +1790,7 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
         self.checkReadable();
 
         if (limit == 0) {
-            if (self.getPtrForWrite().string == null) return context.nil;
+            if (!hasContent(self.getRawPtrForWrite())) return context.nil;
             return RubyString.newEmptyString(context.runtime, self.getEncoding());
         }
 
@@ -824,10 +1804,8 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
     };
 
     private static final Getline.Callback<StringIO, StringIO> GETLINE_YIELD = (context, self, rs, limit, chomp, block) -> {
-        IRubyObject line;
-
-        StringIOData ptr = self.getPtrForWrite();
-        if (ptr.string == null || ptr.pos > ptr.string.size()) {
+        StringIOData ptr = self.getRawPtrForWrite();
+        if (!hasContent(ptr) || ptr.pos > contentSize(ptr)) {
             return self;
         }
 
@@ -837,20 +1815,31 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
 
         if (rs.isNil()) chomp = false;
 
-        while (!(line = self.getline(context, rs, limit, chomp)).isNil()) {
-            block.yieldSpecific(context, line);
+        self.eachLine(context, rs, limit, chomp, false, block);
+
+        return self;
+    };
+
+    private static final Getline.Callback<StringIO, StringIO> GETLINE_YIELD_OFFSET = (context, self, rs, limit, chomp, block) -> {
+        StringIOData ptr = self.getRawPtrForWrite();
+        if (!hasContent(ptr) || ptr.pos > contentSize(ptr)) {
+            return self;
         }
 
+        if (limit == 0) {
+            throw context.runtime.newArgumentError("invalid limit: 0 for each_line_with_offset");
+        }
+
+        if (rs.isNil()) chomp = false;
+
+        self.eachLine(context, rs, limit, chomp, true, block);
+
         return self;
     };
 
     private static final Getline.Callback<StringIO, RubyArray<IRubyObject>> GETLINE_ARY = (context, self, rs, limit, chomp, block) -> {
-        @SuppressWarnings("unchecked")
-        RubyArray<IRubyObject> ary = (RubyArray<IRubyObject>) context.runtime.newArray();
-        IRubyObject line;
-
-        StringIOData ptr = self.getPtrForWrite();
-        if (ptr.string == null || ptr.pos > ptr.string.size()) {
+        StringIOData ptr = self.getRawPtrForWrite();
+        if (!hasContent(ptr) || ptr.pos > contentSize(ptr)) {
             return null;
         }
 
@@ -860,153 +1849,374 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
 
         if (rs.isNil()) chomp = false;
 
-        while (!(line = self.getline(context, rs, limit, chomp)).isNil()) {
-            ary.append(line);
-        }
+        return self.readLines(context, rs, limit, chomp);
+    };
 
-        return ary;
+    private static final Getline.Callback<StringIO, RubyArray<?>> GETLINE_SEPARATOR = (context, self, rs, limit, chomp, block) -> {
+        if (rs.isNil()) chomp = false;
+
+        return RubyArray.newArray(context.runtime, rs, context.runtime.newBoolean(chomp));
     };
 
     // strio_getline
     private IRubyObject getline(ThreadContext context, final IRubyObject rs, int limit, boolean chomp) {
-        Ruby runtime = context.runtime;
+        checkReadable();
+
+        if (isEndOfString()) {
+            return context.nil;
+        }
 
-        RubyString str;
+        StringIOData ptr = this.getPtrOrBufferForWrite();
+
+        boolean locked = lock(context, ptr, "gets");
+        try {
+            long start = ptr.pos;
+            IRubyObject line = getlineLocked(context, ptr, rs, limit, chomp, null);
+            if (ptr.stats.enabled) {
+                ptr.stats.getsCalls.increment();
+                ptr.stats.bytesRead.add(ptr.pos - start);
+            }
+            return line;
+        } finally {
+            if (locked) unlock(ptr);
+        }
+    }
 
+    /**
+     * Yield every remaining line under a single lock, followed by its offset if offsets is set. Between lines only
+     * what the block could have changed is checked again: that the stream is still readable, and which StringIOData
+     * backs it after a reopen.
+     */
+    private void eachLine(ThreadContext context, final IRubyObject rs, int limit, boolean chomp, boolean offsets, Block block) {
         checkReadable();
 
-        int n;
+        StringIOData ptr = this.getPtrOrBufferForWrite();
+        int[] skip = null;
+        if (rs instanceof RubyString && ((RubyString) rs).size() > ByteScanner.SEPARATOR_MAX) {
+            skip = separatorSkip(((RubyString) rs).getByteList());
+        }
 
-        if (isEndOfString()) {
-            return context.nil;
+        boolean locked = lock(context, ptr, "each_line");
+        try {
+            IRubyObject line;
+            long offset = 0;
+            while (!isEndOfString()) {
+                if (offsets) offset = nextLineOffset(ptr, rs);
+                long start = ptr.pos;
+                if ((line = getlineLocked(context, ptr, rs, limit, chomp, skip)).isNil()) break;
+                if (ptr.stats.enabled) ptr.stats.bytesRead.add(ptr.pos - start);
+
+                if (offsets) {
+                    block.yieldSpecific(context, line, context.runtime.newFixnum(offset));
+                } else {
+                    block.yieldSpecific(context, line);
+                }
+
+                checkReadable();
+                if (this.ptr != ptr) {
+                    if (locked) unlock(ptr);
+                    locked = false;
+                    ptr = this.ptr;
+                    locked = lock(context, ptr, "each_line");
+                }
+            }
+        } finally {
+            if (locked) unlock(ptr);
         }
+    }
 
-        StringIOData ptr = this.getPtrForWrite();
-        Encoding enc = getEncoding();
+    // where getlineLocked will start the next line; paragraph mode skips the newlines in front of it
+    private static long nextLineOffset(StringIOData ptr, IRubyObject rs) {
+        long pos = ptr.pos;
 
-        boolean locked = lock(context, ptr);
+        if (rs instanceof RubyString && ((RubyString) rs).size() == 0) {
+            long size = contentSize(ptr);
+            while (pos < size && contentByte(ptr, pos) == '\n') pos++;
+        }
+
+        return pos;
+    }
+
+    /**
+     * Collect every remaining line under a single lock. With a single-byte separator and no limit the separators
+     * are counted first, so the array is allocated once at its final size and filled in a second pass.
+     */
+    private RubyArray<IRubyObject> readLines(ThreadContext context, final IRubyObject rs, int limit, boolean chomp) {
+        checkReadable();
+
+        StringIOData ptr = this.getPtrOrBufferForWrite();
+        long start = ptr.pos;
+        Object large = null;
+
+        boolean locked = lock(context, ptr, "readlines");
         try {
-            final ByteList string = ptr.string.getByteList();
-            final byte[] stringBytes = string.getUnsafeBytes();
-            int begin = string.getBegin();
-            int pos = ptr.pos;
-            int s = begin + pos;
-            int e = begin + string.getRealSize();
-            int p;
+            if (hasContent(ptr) && contentSize(ptr) - start >= StringIOEvents.LARGE) large = StringIOEvents.beginLarge();
+
+            if (limit < 0 && ptr.buffer == null && !isEndOfString() && rs instanceof RubyString && ((RubyString) rs).size() == 1) {
+                return readLinesSingleByte(context, ptr, (byte) ((RubyString) rs).getByteList().get(0), chomp);
+            }
+
+            @SuppressWarnings("unchecked")
+            RubyArray<IRubyObject> ary = (RubyArray<IRubyObject>) context.runtime.newArray();
+            int[] skip = null;
+            if (rs instanceof RubyString && ((RubyString) rs).size() > ByteScanner.SEPARATOR_MAX) {
+                skip = separatorSkip(((RubyString) rs).getByteList());
+            }
+
+            IRubyObject line;
+            while (!isEndOfString() && !(line = getlineLocked(context, ptr, rs, limit, chomp, skip)).isNil()) {
+                ary.append(line);
+            }
+
+            return ary;
+        } finally {
+            if (ptr.stats.enabled) ptr.stats.bytesRead.add(ptr.pos - start);
+            if (large != null) StringIOEvents.endLarge(large, "readlines", ptr.pos - start);
+            if (locked) unlock(ptr);
+        }
+    }
+
+    // must be called under lock with pos inside the string
+    private RubyArray<IRubyObject> readLinesSingleByte(ThreadContext context, StringIOData ptr, byte sep, boolean chomp) {
+        Ruby runtime = context.runtime;
+        Encoding enc = getEncoding();
+        final ByteList string = ptr.string.getByteList();
+        final byte[] stringBytes = string.getUnsafeBytes();
+        int begin = string.getBegin();
+        int s = begin + (int) ptr.pos;
+        int e = begin + string.getRealSize();
+
+        int count = ByteScanner.count(stringBytes, s, e, sep);
+        if (stringBytes[e - 1] != sep) count++; // trailing line without a separator
+
+        IRubyObject[] lines = new IRubyObject[count];
+        for (int i = 0; i < count; i++) {
+            int p = ByteScanner.indexOf(stringBytes, s, e, sep);
+            int end = e;
             int w = 0;
+            if (p != -1) {
+                end = p + 1;
+                w = (chomp ? ((p > s && stringBytes[p-1] == '\r')?1:0) + 1 : 0);
+            }
+            lines[i] = strioSubstr(runtime, s - begin, end - s - w, enc);
+            s = end;
+        }
+
+        ptr.pos = e - begin;
+        ptr.lineno += count;
+
+        @SuppressWarnings("unchecked")
+        RubyArray<IRubyObject> ary = (RubyArray<IRubyObject>) RubyArray.newArrayNoCopy(runtime, lines);
+        return ary;
+    }
+
+    private static int[] separatorSkip(ByteList rs) {
+        int[] skip = new int[1 << CHAR_BIT];
+        bm_init_skip(skip, rs.getUnsafeBytes(), rs.getBegin(), rs.getRealSize());
+        return skip;
+    }
 
-            if (limit > 0 && s + limit < e) {
-                e = getEncoding().rightAdjustCharHead(stringBytes, s, s + limit, e);
+    // MRI: strio_getline
+    // must be called under lock with pos inside the content; skip is the bm_search table for rs, if already built
+    private IRubyObject getlineLocked(ThreadContext context, StringIOData ptr, final IRubyObject rs, int limit, boolean chomp, int[] skip) {
+        Ruby runtime = context.runtime;
+        Encoding enc = getEncoding();
+        ByteContent content = byteContent(ptr);
+        long s = ptr.pos;
+        long e = contentSize(ptr);
+        long p;
+        int n;
+        long w = 0;
+
+        if (limit > 0 && s + limit < e) {
+            e = content.rightCharHead(enc, s, s + limit, e);
+        }
+        if (rs == context.nil) {
+            if (chomp) {
+                w = chompNewlineWidth(content, s, e);
             }
-            if (rs == context.nil) {
-                if (chomp) {
-                    w = chompNewlineWidth(stringBytes, s, e);
+        } else if ((n = ((RubyString) rs).size()) == 0) {
+            long paragraph_end = 0;
+            p = s;
+            while (content.get(p) == '\n') {
+                if (++p == e) {
+                    return context.nil;
                 }
-                str = strioSubstr(runtime, pos, e - s - w, enc);
-            } else if ((n = ((RubyString) rs).size()) == 0) {
-                int paragraph_end = 0;
-                p = s;
-                while (stringBytes[p] == '\n') {
-                    if (++p == e) {
-                        return context.nil;
-                    }
-                }
-                s = p;
-                while ((p = Helpers.memchr(stringBytes, p, '\n', e - p)) != -1 && (p != e)) {
-                    p++;
-                    if (!((p < e && stringBytes[p] == '\n') ||
-                            (p + 1 < e && stringBytes[p] == '\r' && stringBytes[p+1] == '\n'))) {
-                        continue;
-                    }
-                    paragraph_end = p - ((stringBytes[p-2] == '\r') ? 2 : 1);
-                    while ((p < e && stringBytes[p] == '\n') ||
-                    (p + 1 < e && stringBytes[p] == '\r' && stringBytes[p+1] == '\n')) {
-                        p += (stringBytes[p] == '\r') ? 2 : 1;
-                    }
-                    e = p;
-                    break;
-                }
-                if (chomp && paragraph_end != 0) {
-                    w = e - paragraph_end;
+            }
+            s = p;
+            while ((p = content.indexOf(p, e, (byte) '\n')) != -1 && (p != e)) {
+                p++;
+                if (!((p < e && content.get(p) == '\n') ||
+                        (p + 1 < e && content.get(p) == '\r' && content.get(p+1) == '\n'))) {
+                    continue;
                 }
-                str = strioSubstr(runtime, s - begin, e - s - w, enc);
-            } else if (n == 1) {
-                RubyString strStr = (RubyString) rs;
-                ByteList strByteList = strStr.getByteList();
-                if ((p = Helpers.memchr(stringBytes, s, strByteList.get(0), e - s)) != -1) {
-                    e = p + 1;
-                    w = (chomp ? ((p > s && stringBytes[p-1] == '\r')?1:0) + 1 : 0);
+                paragraph_end = p - ((content.get(p-2) == '\r') ? 2 : 1);
+                while ((p < e && content.get(p) == '\n') ||
+                (p + 1 < e && content.get(p) == '\r' && content.get(p+1) == '\n')) {
+                    p += (content.get(p) == '\r') ? 2 : 1;
                 }
-                str = strioSubstr(runtime, pos, e - s - w, enc);
+                e = p;
+                break;
+            }
+            if (chomp && paragraph_end != 0) {
+                w = e - paragraph_end;
+            }
+        } else if (n == 1) {
+            if ((p = content.indexOf(s, e, (byte) ((RubyString) rs).getByteList().get(0))) != -1) {
+                e = p + 1;
+                w = (chomp ? ((p > s && content.get(p-1) == '\r')?1:0) + 1 : 0);
+            }
+        } else if (n < e - s + (chomp ? 1 : 0)) {
+            ByteList rsByteList = ((RubyString) rs).getByteList();
+            byte[] rsBytes = rsByteList.getUnsafeBytes();
+
+            /* unless chomping, RS at the end does not matter */
+            if (n <= ByteScanner.SEPARATOR_MAX || e - s < 1024 || n == e - s) {
+                p = content.indexOf(s, e, rsBytes, rsByteList.getBegin(), n);
             } else {
-                if (n < e - s + (chomp ? 1 : 0)) {
-                    RubyString rsStr = (RubyString) rs;
-                    ByteList rsByteList = rsStr.getByteList();
-                    byte[] rsBytes = rsByteList.getUnsafeBytes();
-
-                    /* unless chomping, RS at the end does not matter */
-                    if (e - s < 1024 || n == e - s) {
-                        for (p = s; p + n <= e; ++p) {
-                            if (ByteList.memcmp(stringBytes, p, rsBytes, 0, n) == 0) {
-                                e = p + n;
-                                w = (chomp ? n : 0);
-                                break;
-                            }
-                        }
-                    } else {
-                        int[] skip = new int[1 << CHAR_BIT];
-                        int pos2;
-                        p = rsByteList.getBegin();
-                        bm_init_skip(skip, rsBytes, p, n);
-                        if ((pos2 = bm_search(rsBytes, p, n, stringBytes, s, e - s, skip)) >= 0) {
-                            e = s + pos2 + (chomp ? 0 : n);
-                        }
-                    }
-                }
-                str = strioSubstr(runtime, pos, e - s - w, enc);
+                if (skip == null) skip = separatorSkip(rsByteList);
+                p = content.search(s, e, rsBytes, rsByteList.getBegin(), n, skip);
             }
-            ptr.pos = e - begin;
-            ptr.lineno++;
+            if (p != -1) {
+                e = p + n;
+                w = (chomp ? n : 0);
+            }
+        }
+        if (e - s - w > MAX_CAPACITY) throw runtime.newArgumentError("string size too big");
+        RubyString str = strioSubstr(runtime, s, (int) (e - s - w), enc);
+        ptr.pos = e;
+        ptr.lineno++;
+
+        return str;
+    }
+
+    // the content of ptr for scanning, wherever it is held; must be called under lock, and used only until it changes
+    private static ByteContent byteContent(StringIOData ptr) {
+        if (ptr.buffer != null) return ptr.buffer;
+
+        StringContent content = ptr.stringContent;
+        if (content == null) content = ptr.stringContent = new StringContent();
+        return content.reset(ptr.string.getByteList());
+    }
+
+    private static int chompNewlineWidth(ByteContent content, long s, long e) {
+        if (e > s && content.get(--e) == '\n') {
+            if (e > s && content.get(--e) == '\r') return 2;
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * MRI: rb_enc_right_char_head. Unlike Encoding#rightAdjustCharHead, a broken character counts as its first
+     * byte, as in rb_enc_mbclen, so the result is never before p.
+     */
+    static int rightCharHead(Encoding enc, byte[] bytes, int s, int p, int e) {
+        int q = enc.leftAdjustCharHead(bytes, s, p, e);
+        return q < p ? q + StringSupport.length(enc, bytes, q, e) : q;
+    }
+
+    @JRubyMethod(name = {"length", "size"})
+    public IRubyObject length(ThreadContext context) {
+        checkInitialized();
+        StringIOData ptr = getRawPtrForRead();
+        if (!hasContent(ptr)) return RubyFixnum.zero(context.runtime);
+        return getRuntime().newFixnum(contentSize(ptr));
+    }
+
+    @JRubyMethod(name = "lineno")
+    public IRubyObject lineno(ThreadContext context) {
+        return context.runtime.newFixnum(getRawPtrForRead().lineno);
+    }
+
+    @JRubyMethod(name = "lineno=", required = 1)
+    public IRubyObject set_lineno(ThreadContext context, IRubyObject arg) {
+        getRawPtrForWrite().lineno = RubyNumeric.fix2int(arg);
+
+        return context.nil;
+    }
+
+    /**
+     * Move to the start of line n, counting "\n"-terminated lines from zero, and set lineno to n. Raises EOFError
+     * if the content has fewer lines.
+     */
+    @JRubyMethod(name = "seek_line")
+    public IRubyObject seek_line(ThreadContext context, IRubyObject arg) {
+        int n = RubyNumeric.num2int(arg);
+        StringIOData ptr = this.getPtrOrBufferForWrite();
+
+        boolean locked = lock(context, ptr, "seek_line");
+        try {
+            long offset = lineStart(context, ptr, n);
+            if (offset == -1) throw context.runtime.newEOFError();
+
+            ptr.pos = offset;
+            ptr.lineno = n;
         } finally {
             if (locked) unlock(ptr);
         }
 
-        return str;
+        return RubyFixnum.zero(context.runtime);
     }
 
-    private static int chompNewlineWidth(byte[] bytes, int s, int e) {
-        if (e > s && bytes[--e] == '\n') {
-            if (e > s && bytes[--e] == '\r') return 2;
-            return 1;
+    /**
+     * The byte offset where line n starts, or nil if the content has fewer lines.
+     */
+    @JRubyMethod(name = "line_offset")
+    public IRubyObject line_offset(ThreadContext context, IRubyObject arg) {
+        int n = RubyNumeric.num2int(arg);
+        StringIOData ptr = this.getPtrOrBufferForRead();
+
+        boolean locked = lock(context, ptr, "line_offset");
+        try {
+            long offset = lineStart(context, ptr, n);
+            return offset == -1 ? context.nil : context.runtime.newFixnum(offset);
+        } finally {
+            if (locked) unlock(ptr);
         }
-        return 0;
     }
 
-    @JRubyMethod(name = {"length", "size"})
-    public IRubyObject length(ThreadContext context) {
-        checkInitialized();
-        RubyString myString = getPtrForRead().string;
-        if (myString == null) return RubyFixnum.zero(context.runtime);
-        return getRuntime().newFixnum(myString.size());
-    }
+    // must be called under lock with no appends pending
+    private static long lineStart(ThreadContext context, StringIOData ptr, int n) {
+        if (n < 0) throw context.runtime.newArgumentError("negative line number");
+        if (!hasContent(ptr)) return -1;
 
-    @JRubyMethod(name = "lineno")
-    public IRubyObject lineno(ThreadContext context) {
-        return context.runtime.newFixnum(getPtrForRead().lineno);
+        Object holder = ptr.buffer != null ? ptr.buffer : ptr.string;
+        LineIndex lines = ptr.lines;
+        if (lines == null || !lines.isFor(holder)) ptr.lines = lines = new LineIndex(holder);
+
+        return lines.lineStart(byteContent(ptr), contentSize(ptr), n);
     }
 
-    @JRubyMethod(name = "lineno=", required = 1)
-    public IRubyObject set_lineno(ThreadContext context, IRubyObject arg) {
-        getPtrForWrite().lineno = RubyNumeric.fix2int(arg);
+    // must be called under lock before the content changes at offset or later
+    private static void invalidateLines(StringIOData ptr, long offset) {
+        LineIndex lines = ptr.lines;
+        if (lines != null) lines.invalidateFrom(offset);
+    }
 
-        return context.nil;
+    /**
+     * Must be called under lock before the string changes in place at offset or later: if a snapshot still shares
+     * any of the bytes from there on, give the string a copy of its own to change.
+     */
+    private static void releaseSnapshot(StringIOData ptr, int offset) {
+        byte[] shared = ptr.snapshotBytes;
+        if (shared == null) return;
+
+        ByteList bytes = ptr.string.getByteList();
+        if (bytes.getUnsafeBytes() != shared) {
+            // the string has been given other bytes since, by growing or being replaced
+            ptr.snapshotBytes = null;
+        } else if (bytes.getBegin() + offset < ptr.snapshotEnd) {
+            bytes.unshare(shared.length - bytes.getBegin());
+            ptr.snapshotBytes = null;
+        }
     }
 
     @JRubyMethod(name = {"pos", "tell"})
     public IRubyObject pos(ThreadContext context) {
         checkInitialized();
 
-        return context.runtime.newFixnum(getPtrForRead().pos);
+        return context.runtime.newFixnum(getRawPtrForRead().pos);
     }
 
     @JRubyMethod(name = "pos=", required = 1)
@@ -1017,9 +2227,7 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
 
         if (p < 0) throw getRuntime().newErrnoEINVALError(arg.toString());
 
-        if (p > Integer.MAX_VALUE) throw getRuntime().newArgumentError("JRuby does not support StringIO larger than " + Integer.MAX_VALUE + " bytes");
-
-        getPtrForWrite().pos = (int)p;
+        getRawPtrForWrite().pos = p;
 
         return arg;
     }
@@ -1027,7 +2235,7 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
     private void strioExtend(ThreadContext context, int pos, int len) {
         StringIOData ptr = this.getPtrForWrite();
 
-        boolean locked = lock(context, ptr);
+        boolean locked = lock(context, ptr, "write");
         try {
             RubyString string = ptr.string;
             final int olen = string.size();
@@ -1064,12 +2272,12 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
 
         checkModifiable();
         if (ch instanceof RubyString) {
-            if (getPtrForWrite().string == null) return context.nil;
+            if (!hasContent(getRawPtrForWrite())) return context.nil;
             str = substrString((RubyString) ch, str, runtime);
         }
         else {
             byte c = RubyNumeric.num2chr(ch);
-            if (getPtrForWrite().string == null) return context.nil;
+            if (!hasContent(getRawPtrForWrite())) return context.nil;
             str = RubyString.newString(runtime, new byte[]{c});
         }
         write(context, str);
@@ -1096,15 +2304,16 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
     @SuppressWarnings("fallthrough")
     private IRubyObject readCommon(ThreadContext context, int argc, IRubyObject arg0, IRubyObject arg1) {
         checkReadable();
+        if (ptr.stats.enabled) ptr.stats.readCalls.increment();
 
         Ruby runtime = context.runtime;
 
         IRubyObject str = context.nil;
         boolean binary = false;
-        StringIOData ptr = this.getPtrForWrite();
-        int pos = ptr.pos;
+        StringIOData ptr = this.getPtrOrBufferForWrite();
+        long pos = ptr.pos;
 
-        boolean locked = lock(context, ptr);
+        boolean locked = lock(context, ptr, "read");
         try {
             int len;
             final RubyString string;
@@ -1130,12 +2339,11 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
                         break;
                     }
                 case 0:
-                    RubyString myString = ptr.string;
-                    if (myString == null) {
+                    if (!hasContent(ptr)) {
                         return context.nil;
                     }
-                    len = ptr.string.size();
-                    if (len <= pos) {
+                    long size = contentSize(ptr);
+                    if (size <= pos) {
                         Encoding enc = binary ? ASCIIEncoding.INSTANCE : getEncoding();
                         if (str.isNil()) {
                             str = runtime.newString();
@@ -1144,9 +2352,9 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
                         }
                         ((RubyString) str).setEncoding(enc);
                         return str;
-                    } else {
-                        len -= pos;
                     }
+                    if (size - pos > MAX_CAPACITY) throw runtime.newArgumentError("string size too big");
+                    len = (int) (size - pos);
                     break;
                 default:
                     throw runtime.newArgumentError(argc, 0, 2);
@@ -1157,21 +2365,18 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
                 string = strioSubstr(runtime, pos, len, enc);
             } else {
                 string = (RubyString) str;
-                RubyString myString = ptr.string;
-                int rest = myString.size() - pos;
-                if (len > rest) len = rest;
+                long rest = contentSize(ptr) - pos;
+                if (len > rest) len = (int) rest;
                 string.resize(len);
                 ByteList strByteList = string.getByteList();
-                byte[] strBytes = strByteList.getUnsafeBytes();
-                ByteList dataByteList = myString.getByteList();
-                byte[] dataBytes = dataByteList.getUnsafeBytes();
-                System.arraycopy(dataBytes, dataByteList.getBegin() + pos, strBytes, strByteList.getBegin(), len);
+                copyContent(ptr, pos, strByteList.getUnsafeBytes(), strByteList.getBegin(), len);
                 if (!binary) {
-                    string.setEncoding(myString.getEncoding());
+                    string.setEncoding(ptr.buffer != null ? getEncoding() : ptr.string.getEncoding());
                 }
             }
 
             ptr.pos += string.size();
+            if (ptr.stats.enabled) ptr.stats.bytesRead.add(string.size());
 
             return string;
         } finally {
@@ -1197,9 +2402,9 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
     @SuppressWarnings("fallthrough")
     private RubyString preadCommon(ThreadContext context, int argc, IRubyObject arg0, IRubyObject arg1, IRubyObject arg2) {
         IRubyObject str = context.nil;
-        StringIOData ptr = this.getPtrForRead();
+        StringIOData ptr = this.getPtrOrBufferForRead();
         Ruby runtime = context.runtime;
-        int offset;
+        long offset;
         final RubyString string;
         int len;
         checkReadable();
@@ -1213,7 +2418,7 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
                 }
             case 2:
                 len = RubyNumeric.fix2int(arg0);
-                offset = RubyNumeric.fix2int(arg1);
+                offset = RubyNumeric.fix2long(arg1);
                 if (!arg0.isNil()) {
                     len = RubyNumeric.fix2int(arg0);
 
@@ -1226,7 +2431,7 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
                 throw runtime.newArgumentError(argc, 0, 2);
         }
 
-        boolean locked = lock(context, ptr);
+        boolean locked = lock(context, ptr, "pread");
         try {
             if (len == 0) {
                 if (str.isNil()) {
@@ -1248,15 +2453,11 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
             }
 
             string = (RubyString) str;
-            RubyString myString = ptr.string;
-            int rest = myString.size() - offset;
-            if (len > rest) len = rest;
+            long rest = contentSize(ptr) - offset;
+            if (len > rest) len = (int) rest;
             string.resize(len);
             ByteList strByteList = string.getByteList();
-            byte[] strBytes = strByteList.getUnsafeBytes();
-            ByteList dataByteList = myString.getByteList();
-            byte[] dataBytes = dataByteList.getUnsafeBytes();
-            System.arraycopy(dataBytes, dataByteList.getBegin() + offset, strBytes, strByteList.getBegin(), len);
+            copyContent(ptr, offset, strByteList.getUnsafeBytes(), strByteList.getBegin(), len);
             string.setEncoding(ASCIIEncoding.INSTANCE);
         } finally {
             if (locked) unlock(ptr);
@@ -1265,6 +2466,187 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
         return string;
     }
 
+    // bytes handed at a time to a copy_to target that takes Ruby strings
+    private static final int COPY_CHUNK = 1 << 20;
+
+    /**
+     * StringIO#copy_to(io_or_path, offset: 0, length: nil) -> integer
+     *
+     * Write length bytes of the content starting at offset, or all of it from offset on, to an IO, to the file at a
+     * path, which is created or truncated, or to anything else that responds to write. An IO or a file gets the
+     * bytes straight from the String or buffer holding them, with no Ruby strings in between. The writing happens
+     * outside the lock, from a {@link #snapshot} of the String, so writes through this StringIO meanwhile neither wait
+     * for it nor show up in it; content held in a ByteBuffer is written from the same memory instead. The position is
+     * left alone. Returns the number of bytes written.
+     */
+    @JRubyMethod(name = "copy_to", required = 1, optional = 1, keywords = true)
+    public IRubyObject copy_to(ThreadContext context, IRubyObject[] args) {
+        Ruby runtime = context.runtime;
+        long offset = 0;
+        long length = -1;
+
+        if (args.length > 1) {
+            IRubyObject maybeOptions = ArgsUtil.getOptionsArg(runtime, args);
+            if (maybeOptions.isNil()) throw runtime.newArgumentError(args.length, 1, 1);
+
+            RubyHash options = (RubyHash) maybeOptions;
+            IRubyObject offsetOpt = options.fastARef(runtime.newSymbol("offset"));
+            if (offsetOpt != null && !offsetOpt.isNil()) {
+                offset = RubyNumeric.num2long(offsetOpt);
+                if (offset < 0) throw runtime.newArgumentError("negative offset");
+            }
+            IRubyObject lengthOpt = options.fastARef(runtime.newSymbol("length"));
+            if (lengthOpt != null && !lengthOpt.isNil()) {
+                length = RubyNumeric.num2long(lengthOpt);
+                if (length < 0) throw runtime.newArgumentError("negative length");
+            }
+        }
+
+        return runtime.newFixnum(copyTo(context, args[0], offset, length));
+    }
+
+    // copy_to; a negative length copies everything from offset on
+    private long copyTo(ThreadContext context, IRubyObject target, long offset, long length) {
+        checkReadable();
+        StringIOData ptr = getPtrOrBufferForRead();
+        ByteBuffer[] slices;
+
+        boolean locked = lock(context, ptr, "copy_to");
+        try {
+            slices = contentRange(context.runtime, ptr, offset, length);
+        } finally {
+            if (locked) unlock(ptr);
+        }
+
+        return writeContent(context, slices, target);
+    }
+
+    /**
+     * StringIO#write_to(io_or_path, length = nil) -> integer
+     *
+     * Write length bytes from the position, or all of them up to the end, to the same targets as {@link #copy_to}
+     * and in the same way, and move the position past them. This is what IO.copy_stream(strio, io, length) does,
+     * without going through read. Returns the number of bytes written, which is 0 at end of stream.
+     */
+    @JRubyMethod(name = "write_to", required = 1, optional = 1)
+    public IRubyObject write_to(ThreadContext context, IRubyObject[] args) {
+        long length = args.length > 1 && !args[1].isNil() ? RubyNumeric.num2long(args[1]) : -1;
+        if (args.length > 1 && length < 0) throw context.runtime.newArgumentError("negative length");
+
+        checkReadable();
+        StringIOData ptr = getPtrOrBufferForRead();
+        ByteBuffer[] slices;
+
+        // take the bytes as read would, then write them out without holding the lock
+        boolean locked = lock(context, ptr, "write_to");
+        try {
+            slices = contentRange(context.runtime, ptr, ptr.pos, length);
+            for (ByteBuffer slice : slices) ptr.pos += slice.remaining();
+        } finally {
+            if (locked) unlock(ptr);
+        }
+
+        return context.runtime.newFixnum(writeContent(context, slices, args[0]));
+    }
+
+    /**
+     * Views of length bytes of the content from offset on, or all of them from there, that stay readable once the
+     * lock is released: over a snapshot of the String, or over the ByteBuffer. Must be called under lock, with no
+     * appends pending.
+     */
+    private static ByteBuffer[] contentRange(Ruby runtime, StringIOData ptr, long offset, long length) {
+        long rest = contentSize(ptr) - offset;
+        if (rest <= 0 || length == 0) return new ByteBuffer[0];
+        long len = length < 0 ? rest : Math.min(length, rest);
+
+        BufferContent buffer = ptr.buffer;
+        if (buffer != null) return buffer.slices(offset, len);
+
+        ByteList bytes = shareString(runtime, ptr).getByteList();
+        return new ByteBuffer[] {ByteBuffer.wrap(bytes.getUnsafeBytes(), bytes.getBegin() + (int) offset, (int) len)};
+    }
+
+    // write slices to target, which must not be called under lock since it may block or call into Ruby
+    private static long writeContent(ThreadContext context, ByteBuffer[] slices, IRubyObject target) {
+        Ruby runtime = context.runtime;
+        long len = 0;
+        for (ByteBuffer slice : slices) len += slice.remaining();
+        if (len == 0) return 0;
+
+        if (!(target instanceof RubyIO) && !(target instanceof RubyString) && !target.respondsTo("to_path") && !target.respondsTo("write")) {
+            target = TypeConverter.convertToType(target, runtime.getIO(), "to_io");
+        }
+
+        if (target instanceof RubyIO) {
+            RubyIO io = ((RubyIO) target).GetWriteIO();
+            OpenFile fptr = io.getOpenFileChecked();
+            fptr.checkWritable(context);
+            io.flush(context);
+
+            Channel channel = io.getChannel();
+            // bytes read ahead into the IO's buffer put the channel past its position, which write takes care of
+            if (channel instanceof WritableByteChannel && isBlocking(channel) && !fptr.READ_DATA_PENDING()) {
+                boolean fptrLocked = fptr.lock();
+                try {
+                    return writeFully((WritableByteChannel) channel, slices);
+                } catch (IOException e) {
+                    throw Helpers.newIOErrorFromException(runtime, e);
+                } finally {
+                    if (fptrLocked) fptr.unlock();
+                }
+            }
+        } else if (target instanceof RubyString || target.respondsTo("to_path")) {
+            Path file = JRubyFile.create(runtime.getCurrentDirectory(), RubyFile.get_path(context, target).toString()).toPath();
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                return writeFully(channel, slices);
+            } catch (IOException e) {
+                throw Helpers.newIOErrorFromException(runtime, e);
+            }
+        }
+
+        // anything else only takes Ruby strings, so hand it the bytes a piece at a time
+        for (ByteBuffer slice : slices) {
+            while (slice.hasRemaining()) {
+                byte[] bytes = new byte[Math.min(COPY_CHUNK, slice.remaining())];
+                slice.get(bytes);
+                target.callMethod(context, "write", RubyString.newString(runtime, new ByteList(bytes, ASCIIEncoding.INSTANCE, false)));
+            }
+        }
+
+        return len;
+    }
+
+    private static boolean isBlocking(Channel channel) {
+        return !(channel instanceof SelectableChannel) || ((SelectableChannel) channel).isBlocking();
+    }
+
+    // views of [from, from + len) of the content, which must be called under lock and has no appends pending
+    private static ByteBuffer[] contentSlices(StringIOData ptr, long from, long len) {
+        BufferContent buffer = ptr.buffer;
+        if (buffer != null) return buffer.slices(from, len);
+
+        ByteList bytes = ptr.string.getByteList();
+        return new ByteBuffer[] {ByteBuffer.wrap(bytes.getUnsafeBytes(), bytes.getBegin() + (int) from, (int) len)};
+    }
+
+    private static long writeFully(WritableByteChannel channel, ByteBuffer[] slices) throws IOException {
+        long written = 0;
+
+        if (channel instanceof GatheringByteChannel) {
+            GatheringByteChannel gathering = (GatheringByteChannel) channel;
+            for (int i = 0; i < slices.length; ) {
+                written += gathering.write(slices, i, slices.length - i);
+                while (i < slices.length && !slices[i].hasRemaining()) i++;
+            }
+        } else {
+            for (ByteBuffer slice : slices) {
+                while (slice.hasRemaining()) written += channel.write(slice);
+            }
+        }
+
+        return written;
+    }
+
     @JRubyMethod(name = "readlines")
     public IRubyObject readlines(ThreadContext context) {
         return Getline.getlineCall(context, GETLINE_ARY, this, getEncoding());
@@ -1349,9 +2731,9 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
     public IRubyObject rewind(ThreadContext context) {
         checkInitialized();
 
-        StringIOData ptr = this.getPtrForWrite();
+        StringIOData ptr = this.getRawPtrForWrite();
 
-        boolean locked = lock(context, ptr);
+        boolean locked = lock(context, ptr, "rewind");
         try {
             ptr.pos = 0;
             ptr.lineno = 0;
@@ -1376,17 +2758,17 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
         Ruby runtime = context.runtime;
 
         IRubyObject whence = context.nil;
-        int offset = RubyNumeric.num2int(arg0);
+        long offset = RubyNumeric.num2long(arg0);
 
         if (argc > 1 && !arg0.isNil()) {
             whence = arg1;
         }
 
-        StringIOData ptr = this.getPtrForWrite();
+        StringIOData ptr = this.getRawPtrForWrite();
 
         checkOpen();
 
-        boolean locked = lock(context, ptr);
+        boolean locked = lock(context, ptr, "seek");
         try {
             switch (whence.isNil() ? 0 : RubyNumeric.num2int(whence)) {
                 case 0:
@@ -1395,11 +2777,7 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
                     offset += ptr.pos;
                     break;
                 case 2:
-                    if (ptr.string == null) {
-                        offset += 0;
-                    } else {
-                        offset += ptr.string.size();
-                    }
+                    offset += contentSize(ptr);
                     break;
                 default:
                     throw runtime.newErrnoEINVALError("invalid whence");
@@ -1417,15 +2795,19 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
 
     @JRubyMethod(name = "string=", required = 1)
     public IRubyObject set_string(ThreadContext context, IRubyObject arg) {
-        StringIOData ptr = this.getPtrForWrite();
+        StringIOData ptr = this.getRawPtrForWrite();
 
-        boolean locked = lock(context, ptr);
+        boolean locked = lock(context, ptr, "string=");
         try {
             ptr.flags &= ~OpenFile.READWRITE;
             RubyString str = arg.convertToString();
             ptr.flags = str.isFrozen() ? OpenFile.READABLE : OpenFile.READWRITE;
             ptr.pos = 0;
             ptr.lineno = 0;
+            if (ptr.buffer != null) ptr.buffer.trim();
+            ptr.buffer = null;
+            ptr.appends = null;
+            ptr.appendChunks = false;
             return ptr.string = str;
         } finally {
             if (locked) unlock(ptr);
@@ -1434,12 +2816,62 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
 
     @JRubyMethod(name = "string")
     public IRubyObject string(ThreadContext context) {
-        RubyString string = getPtrForRead().string;
+        StringIOData ptr = getPtrForRead();
+        RubyString string = ptr.string;
         if (string == null) return context.nil;
 
+        // once out, it can be looked at at any time
+        ptr.appendChunks = false;
+
         return string;
     }
 
+    /**
+     * StringIO#snapshot -> string
+     *
+     * A frozen String with the content as it is now, without copying it: the snapshot shares the bytes of the String
+     * being written, and the next write through this StringIO that would change any of them in place, such as a
+     * write before the end, truncate or ungetbyte, copies them first. Writes past the end of the snapshot, appends
+     * among them, copy nothing. Content held in a ByteBuffer is copied. Changes made to the String directly, rather
+     * than through this StringIO, are not tracked and show through.
+     */
+    @JRubyMethod(name = "snapshot")
+    public IRubyObject snapshot(ThreadContext context) {
+        Ruby runtime = context.runtime;
+        StringIOData ptr = getPtrOrBufferForRead();
+
+        boolean locked = lock(context, ptr, "snapshot");
+        try {
+            if (ptr.buffer != null) {
+                BufferContent buffer = ptr.buffer;
+                if (buffer.size() > MAX_CAPACITY) throw runtime.newArgumentError("string size too big");
+                RubyString snapshot = RubyString.newString(runtime, new ByteList(buffer.bytes(0, (int) buffer.size()), getEncoding(), false));
+                snapshot.setFrozen(true);
+
+                return snapshot;
+            }
+
+            return ptr.string == null ? context.nil : shareString(runtime, ptr);
+        } finally {
+            if (locked) unlock(ptr);
+        }
+    }
+
+    // a frozen String sharing the bytes of string, which are copied before they change in place; must be called under lock
+    private static RubyString shareString(Ruby runtime, StringIOData ptr) {
+        ByteList bytes = ptr.string.getByteList();
+        byte[] shared = bytes.getUnsafeBytes();
+        int end = bytes.getBegin() + bytes.getRealSize();
+        RubyString snapshot = RubyString.newStringShared(runtime, shared, bytes.getBegin(), bytes.getRealSize(), bytes.getEncoding());
+        if (ptr.snapshotBytes != shared || ptr.snapshotEnd < end) {
+            ptr.snapshotBytes = shared;
+            ptr.snapshotEnd = end;
+        }
+        snapshot.setFrozen(true);
+
+        return snapshot;
+    }
+
     @JRubyMethod(name = "sync")
     public IRubyObject sync(ThreadContext context) {
         checkInitialized();
@@ -1450,24 +2882,36 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
     public IRubyObject truncate(ThreadContext context, IRubyObject len) {
         checkWritable();
 
-        int l = RubyFixnum.fix2int(len);
-        StringIOData ptr = this.getPtrForWrite();
-        RubyString string = ptr.string;
+        long l = RubyNumeric.num2long(len);
+        StringIOData ptr = this.getPtrOrBufferForWrite();
 
-        boolean locked = lock(context, ptr);
+        boolean locked = lock(context, ptr, "truncate");
         try {
             if (l < 0) {
                 throw context.runtime.newErrnoEINVALError("negative legnth");
             }
-            if (string == null) {
+            if (!hasContent(ptr)) {
+                return RubyFixnum.zero(context.runtime);
+            }
+            invalidateLines(ptr, Math.min(l, contentSize(ptr)));
+            if (ptr.buffer != null && ptr.buffer.truncate(l)) {
+                return RubyFixnum.zero(context.runtime);
+            }
+            if (l > MAX_CAPACITY) {
+                outgrow(ptr, l);
+                ptr.buffer.truncate(l);
                 return RubyFixnum.zero(context.runtime);
             }
+            // past the end of the buffer, so carry on in a String
+            materialize(ptr);
+            RubyString string = ptr.string;
             int plen = string.size();
-            string.resize(l);
+            releaseSnapshot(ptr, (int) Math.min(l, plen));
+            string.resize((int) l);
             ByteList buf = string.getByteList();
             if (plen < l) {
                 // zero the gap
-                Arrays.fill(buf.getUnsafeBytes(), buf.getBegin() + plen, buf.getBegin() + l, (byte) 0);
+                Arrays.fill(buf.getUnsafeBytes(), buf.getBegin() + plen, buf.getBegin() + (int) l, (byte) 0);
             }
         } finally {
             if (locked) unlock(ptr);
@@ -1476,6 +2920,33 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
         return RubyFixnum.zero(context.runtime);
     }
 
+    /**
+     * Grow the string's buffer, or the storage holding the content, so it holds n bytes without reallocating. A
+     * wrapped ByteBuffer keeps its capacity.
+     */
+    @JRubyMethod(name = "reserve")
+    public IRubyObject reserve(ThreadContext context, IRubyObject n) {
+        int capacity = RubyNumeric.num2int(n);
+        if (capacity < 0) throw context.runtime.newArgumentError("negative capacity");
+
+        checkModifiable();
+
+        StringIOData ptr = this.getPtrOrBufferForWrite();
+
+        boolean locked = lock(context, ptr, "reserve");
+        try {
+            if (ptr.buffer != null) {
+                ptr.buffer.reserve(capacity);
+            } else if (ptr.string != null) {
+                growString(ptr.string, capacity);
+            }
+        } finally {
+            if (locked) unlock(ptr);
+        }
+
+        return this;
+    }
+
     @JRubyMethod(name = "ungetc")
     public IRubyObject ungetc(ThreadContext context, IRubyObject arg) {
         Encoding enc, enc2;
@@ -1483,7 +2954,7 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
         checkModifiable();
         checkReadable();
 
-        if (getPtrForWrite().string == null) return context.nil;
+        if (!hasContent(getPtrOrBufferForWrite())) return context.nil;
 
         if (arg.isNil()) return arg;
         if (arg instanceof RubyInteger) {
@@ -1509,30 +2980,78 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
         return context.nil;
     }
 
+    // the position in a String, which cannot be past what a String can hold
+    private static int stringPos(ThreadContext context, StringIOData ptr) {
+        if (ptr.pos > MAX_CAPACITY) throw context.runtime.newArgumentError("string size too big");
+        return (int) ptr.pos;
+    }
+
     private void ungetbyteCommon(ThreadContext context, int c) {
-        StringIOData ptr = this.getPtrForWrite();
+        StringIOData ptr = this.getPtrOrBufferForWrite();
 
-        boolean locked = lock(context, ptr);
+        boolean locked = lock(context, ptr, "ungetbyte");
         try {
+            if (ptr.buffer != null && ungetBuffer(ptr, new byte[] {(byte) c}, 0, 1)) return;
+            materialize(ptr);
+
             RubyString string = ptr.string;
+            int pos = stringPos(context, ptr) - 1;
+            releaseSnapshot(ptr, Math.max(pos, 0));
             string.modify();
-            ptr.pos--;
+            ptr.pos = pos;
 
             ByteList bytes = string.getByteList();
 
-            if (isEndOfString()) bytes.length(ptr.pos + 1);
+            if (isEndOfString()) bytes.length(pos + 1);
 
-            if (ptr.pos == -1) {
-                bytes.prepend((byte) c);
+            if (pos == -1) {
+                Object shift = bytes.getRealSize() >= StringIOEvents.LARGE ? StringIOEvents.beginLarge() : null;
+                growFront(context, string, 1);
+                bytes.set(0, c);
+                if (shift != null) StringIOEvents.endLarge(shift, "ungetbyte", bytes.getRealSize());
                 ptr.pos = 0;
             } else {
-                bytes.set(ptr.pos, c);
+                bytes.set(pos, c);
             }
+            string.clearCodeRange();
+            invalidateLines(ptr, ptr.pos);
         } finally {
             if (locked) unlock(ptr);
         }
     }
 
+    /**
+     * Start the string n bytes earlier in its array, leaving them for the caller to fill. Content is moved only
+     * when there is not that much room in front of it, and then into an array with room in front for a quarter
+     * of its length besides, so that pushing bytes back before the start again and again costs only the bytes
+     * pushed rather than moving the whole string each time.
+     */
+    private static void growFront(ThreadContext context, RubyString string, int n) {
+        string.modify();
+        ByteList bytes = string.getByteList();
+        int begin = bytes.getBegin();
+        int len = bytes.getRealSize();
+        if ((long) len + n > MAX_CAPACITY) throw context.runtime.newArgumentError("string size too big");
+
+        if (begin < n) {
+            byte[] old = bytes.getUnsafeBytes();
+            // keep the room there was at the end
+            long tail = old.length - begin;
+            int room = (int) Math.min(Math.max(n, Math.max(len >> 2, PUSHBACK_MIN)), MAX_CAPACITY - tail);
+            if (room < n) {
+                room = n;
+                tail = len;
+            }
+            byte[] grown = new byte[(int) (room + tail)];
+            System.arraycopy(old, begin, grown, room, len);
+            bytes.setUnsafeBytes(grown);
+            begin = room;
+        }
+
+        bytes.setBegin(begin - n);
+        bytes.setRealSize(len + n);
+    }
+
     private void ungetbyteCommon(ThreadContext context, RubyString ungetBytes) {
         ByteList ungetByteList = ungetBytes.getByteList();
         ungetbyteCommon(context, ungetByteList.unsafeBytes(), ungetByteList.begin(), ungetByteList.realSize());
@@ -1541,26 +3060,39 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
     private void ungetbyteCommon(ThreadContext context, byte[] ungetBytes, int cp, int cl) {
         if (cl == 0) return;
 
-        StringIOData ptr = this.getPtrForWrite();
+        StringIOData ptr = this.getPtrOrBufferForWrite();
 
-        boolean locked = lock(context, ptr);
+        boolean locked = lock(context, ptr, "ungetbyte");
         try {
-            int pos = ptr.pos, len, rest;
+            if (ptr.buffer != null && ungetBuffer(ptr, ungetBytes, cp, cl)) return;
+            materialize(ptr);
+
+            int pos = stringPos(context, ptr), len, rest;
             RubyString str = ptr.string;
+            releaseSnapshot(ptr, Math.max(pos - cl, 0));
             ByteList strBytelist;
             byte[] strBytes;
             int s;
 
             len = str.size();
             rest = pos - len;
-            if (cl > pos) {
-                int ex = cl - (rest < 0 ? pos : len);
+            if (cl > pos && rest < 0) {
+                // the bytes before pos are overwritten and the string starts cl - pos bytes earlier
+                Object shift = len >= StringIOEvents.LARGE ? StringIOEvents.beginLarge() : null;
+                growFront(context, str, cl - pos);
+                strBytelist = str.getByteList();
+                strBytes = strBytelist.unsafeBytes();
+                s = strBytelist.begin();
+                if (shift != null) StringIOEvents.endLarge(shift, "ungetbyte", len + cl - pos);
+                pos = 0;
+            }
+            else if (cl > pos) {
+                int ex = cl - len;
                 str.modifyExpand(len + ex);
                 strBytelist = str.getByteList();
                 strBytes = strBytelist.unsafeBytes();
                 s = strBytelist.begin();
                 strBytelist.setRealSize(len + ex);
-                if (rest < 0) System.arraycopy(strBytes, s + pos, strBytes, s + cl, -rest);
                 pos = 0;
             }
             else {
@@ -1582,12 +3114,30 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
             } else {
                 System.arraycopy(strBytes, s, strBytes, s + pos, cl);
             }
+            str.clearCodeRange();
             ptr.pos = pos;
+            invalidateLines(ptr, pos);
         } finally {
             if (locked) unlock(ptr);
         }
     }
 
+    /**
+     * Push bytes back over those right before the position in a buffer, in place. Must be called under lock.
+     *
+     * @return false, changing nothing, if they would go before the start or the position is past the end, for the
+     * caller to carry on in a String
+     */
+    private static boolean ungetBuffer(StringIOData ptr, byte[] bytes, int off, int len) {
+        long pos = ptr.pos;
+        if (len > pos || pos > ptr.buffer.size()) return false;
+
+        invalidateLines(ptr, pos - len);
+        ptr.buffer.put(pos - len, bytes, off, len);
+        ptr.pos = pos - len;
+        return true;
+    }
+
     @JRubyMethod
     public IRubyObject ungetbyte(ThreadContext context, IRubyObject arg) {
         // TODO: Not a line-by-line port.
@@ -1596,7 +3146,7 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
         if (arg.isNil()) return arg;
 
         checkModifiable();
-        if (getPtrForWrite().string == null) return context.nil;
+        if (!hasContent(getPtrOrBufferForWrite())) return context.nil;
 
         if (arg instanceof RubyInteger) {
             ungetbyteCommon(context, ((RubyInteger) ((RubyInteger) arg).op_mod(context, 256)).getIntValue());
@@ -1618,21 +3168,14 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
     @JRubyMethod(name = "write")
     public IRubyObject write(ThreadContext context, IRubyObject arg0, IRubyObject arg1) {
         Ruby runtime = context.runtime;
-        long len = 0;
-        len += stringIOWrite(context, runtime, arg0);
-        len += stringIOWrite(context, runtime, arg1);
-        return RubyFixnum.newFixnum(runtime, len);
+        return RubyFixnum.newFixnum(runtime, stringIOWrite(context, runtime, Helpers.arrayOf(arg0, arg1)));
     }
 
     // MRI: strio_write_m
     @JRubyMethod(name = "write")
     public IRubyObject write(ThreadContext context, IRubyObject arg0, IRubyObject arg1, IRubyObject arg2) {
         Ruby runtime = context.runtime;
-        long len = 0;
-        len += stringIOWrite(context, runtime, arg0);
-        len += stringIOWrite(context, runtime, arg1);
-        len += stringIOWrite(context, runtime, arg2);
-        return RubyFixnum.newFixnum(runtime, len);
+        return RubyFixnum.newFixnum(runtime, stringIOWrite(context, runtime, Helpers.arrayOf(arg0, arg1, arg2)));
     }
 
     // MRI: strio_write_m
@@ -1640,12 +3183,10 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
     public IRubyObject write(ThreadContext context, IRubyObject[] args) {
         Arity.checkArgumentCount(context, args, 1, -1);
 
+        if (args.length == 1) return write(context, args[0]);
+
         Ruby runtime = context.runtime;
-        long len = 0;
-        for (IRubyObject arg : args) {
-            len += stringIOWrite(context, runtime, arg);
-        }
-        return RubyFixnum.newFixnum(runtime, len);
+        return RubyFixnum.newFixnum(runtime, stringIOWrite(context, runtime, args));
     }
 
     private static final MethodHandle CAT_WITH_CODE_RANGE;
@@ -1703,56 +3244,262 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
         return str;
     }
 
-    // MRI: strio_write
-    private long stringIOWrite(ThreadContext context, Ruby runtime, IRubyObject arg) {
-        checkWritable();
+    // MRI: strio_write
+    private long stringIOWrite(ThreadContext context, Ruby runtime, IRubyObject arg) {
+        checkWritable();
+
+        RubyString str = arg.asString();
+
+        StringIOData ptr = this.getRawPtrForWrite();
+
+        boolean locked = lock(context, ptr, "write");
+        try {
+            final Encoding enc = getEncoding();
+            if (enc == null) return 0;
+            str = convertForWrite(context, ptr.stats, enc, str);
+            if (ptr.stats.enabled) ptr.stats.writeCalls.increment();
+            if (str.size() == 0) return 0;
+            checkModifiable();
+
+            int len = writeLocked(context, runtime, ptr, enc, str);
+            if (ptr.stats.enabled) ptr.stats.bytesWritten.add(len);
+            return len;
+        } finally {
+            if (locked) unlock(ptr);
+        }
+    }
+
+    /**
+     * Write several fragments at once. All of them are converted before anything is written, the buffer grows
+     * once to hold them all, and they are copied in under a single lock.
+     */
+    private long stringIOWrite(ThreadContext context, Ruby runtime, IRubyObject[] args) {
+        checkWritable();
+
+        RubyString[] strs = new RubyString[args.length];
+        for (int i = 0; i < args.length; i++) {
+            strs[i] = args[i].asString();
+        }
+
+        StringIOData ptr = this.getRawPtrForWrite();
+
+        boolean locked = lock(context, ptr, "write");
+        try {
+            final Encoding enc = getEncoding();
+            if (enc == null) return 0;
+            long total = 0;
+            for (int i = 0; i < strs.length; i++) {
+                strs[i] = convertForWrite(context, ptr.stats, enc, strs[i]);
+                total += strs[i].size();
+            }
+            if (ptr.stats.enabled) ptr.stats.writeCalls.increment();
+            if (total == 0) return 0;
+            checkModifiable();
+
+            if (ptr.buffer == null && ptr.appends == null) {
+                int olen = ptr.string.size();
+                long start = (ptr.flags & OpenFile.APPEND) != 0 ? olen : ptr.pos;
+                byte[] before = ptr.stats.enabled ? ptr.string.getByteList().getUnsafeBytes() : null;
+                reserveForWrite(ptr, Math.max(olen, start + total));
+                if (before != null) ptr.stats.copied(before, ptr.string.getByteList(), olen, 0);
+            }
+
+            long len = 0;
+            for (RubyString str : strs) {
+                if (str.size() > 0) len += writeLocked(context, runtime, ptr, enc, str);
+            }
+            if (ptr.stats.enabled) ptr.stats.bytesWritten.add(len);
+            return len;
+        } finally {
+            if (locked) unlock(ptr);
+        }
+    }
+
+    // convert str to the StringIO's encoding, as strio_write does before writing it
+    private static RubyString convertForWrite(ThreadContext context, StringIOStats stats, Encoding enc, RubyString str) {
+        Encoding encStr = str.getEncoding();
+        if (enc != encStr && enc != ASCIIEncoding.INSTANCE && enc != USASCIIEncoding.INSTANCE) {
+            // 7-bit bytes are the same in any ASCII-compatible encoding, and appending them leaves ours alone
+            if (enc.isAsciiCompatible() && str.isAsciiOnly()) return str;
+
+            RubyString converted = WriteConverter.convert(context, str, encStr, enc);
+            if (converted == str && encStr != ASCIIEncoding.INSTANCE && encStr != USASCIIEncoding.INSTANCE) { /* conversion failed */
+                rb_enc_check(context, enc, str);
+            }
+            if (converted != str && stats.enabled) stats.conversions.increment();
+            str = converted;
+        }
+        return str;
+    }
+
+    // must be called under lock with a non-empty str already passed through convertForWrite
+    private int writeLocked(ThreadContext context, Ruby runtime, StringIOData ptr, Encoding enc, RubyString str) {
+        final Encoding encStr = str.getEncoding();
+        final ByteList strByteList = str.getByteList();
+        int len = str.size();
+        if ((ptr.flags & OpenFile.APPEND) != 0) {
+            ptr.pos = contentSize(ptr);
+        }
+        if (ptr.pos > Long.MAX_VALUE - len) throw runtime.newArgumentError("string size too big");
+        long needed = ptr.pos + len;
+        invalidateLines(ptr, Math.min(ptr.pos, contentSize(ptr)));
+        if (ptr.buffer != null) {
+            if (ptr.buffer.put(ptr.pos, strByteList.getUnsafeBytes(), strByteList.getBegin(), len)) {
+                ptr.pos = needed;
+                return len;
+            }
+            // past the end of the buffer, so carry on in a String if one can hold the content
+            if (needed <= MAX_CAPACITY) materialize(ptr);
+        }
+        if (needed > MAX_CAPACITY) {
+            outgrow(ptr, needed);
+            ptr.buffer.put(ptr.pos, strByteList.getUnsafeBytes(), strByteList.getBegin(), len);
+            ptr.pos = needed;
+            return len;
+        }
+        if (ptr.appendChunks && ptr.pos == contentSize(ptr) && appendChunk(runtime, ptr, enc, str)) {
+            ptr.pos = needed;
+            return len;
+        }
+        if (ptr.appends != null) flushAppends(ptr);
+        RubyString myString = ptr.string;
+        int olen = myString.size();
+        int pos = (int) ptr.pos;
+        Object resize = (long) pos + len >= StringIOEvents.LARGE ? StringIOEvents.beginLarge() : null;
+        byte[] before = ptr.stats.enabled || resize != null ? myString.getByteList().getUnsafeBytes() : null;
+        growForWrite(ptr, Math.max(olen, (long) pos + len));
+        releaseSnapshot(ptr, Math.min(pos, olen));
+        if (pos == olen) {
+            if (enc == EncodingUtils.ascii8bitEncoding(runtime) || encStr == EncodingUtils.ascii8bitEncoding(runtime)) {
+                EncodingUtils.encStrBufCat(runtime, myString, strByteList, enc);
+            } else {
+                catString(myString, str);
+            }
+        } else {
+            strioExtend(context, pos, len);
+            modifyString(myString);
+            ByteList ptrByteList = myString.getByteList();
+            System.arraycopy(strByteList.getUnsafeBytes(), strByteList.getBegin(), ptrByteList.getUnsafeBytes(), ptrByteList.begin() + pos, len);
+        }
+        if (before != null) {
+            ByteList after = myString.getByteList();
+            if (ptr.stats.enabled) ptr.stats.copied(before, after, olen, len);
+            if (resize != null && after.getUnsafeBytes() != before) StringIOEvents.endLarge(resize, "write", after.getRealSize());
+        }
+        ptr.pos = pos + len;
+
+        return len;
+    }
+
+    /**
+     * Make the content cover [pos, pos + len), zero-filling whatever of it lies past the end, for bytes to be copied
+     * straight into. Must be called under lock, on a StringIO that may be written to.
+     */
+    private void extendContent(ThreadContext context, StringIOData ptr, long pos, int len) {
+        if (pos > Long.MAX_VALUE - len) throw context.runtime.newArgumentError("string size too big");
+        long needed = pos + len;
+        invalidateLines(ptr, Math.min(pos, contentSize(ptr)));
+        BufferContent buffer = ptr.buffer;
+        if (buffer != null) {
+            if (!buffer.isReadOnly() && (needed <= buffer.size() || buffer.truncate(needed))) return;
+            if (needed <= MAX_CAPACITY) {
+                materialize(ptr);
+                checkModifiable();
+            }
+        }
+        if (needed > MAX_CAPACITY) {
+            outgrow(ptr, needed);
+            if (needed > ptr.buffer.size()) ptr.buffer.truncate(needed);
+            return;
+        }
+        if (ptr.appends != null) flushAppends(ptr);
+
+        RubyString string = ptr.string;
+        growForWrite(ptr, Math.max(string.size(), needed));
+        releaseSnapshot(ptr, (int) Math.min(pos, string.size()));
+        strioExtend(context, (int) pos, len);
+        modifyString(string);
+    }
+
+    // strings shorter than this keep growing in place
+    private static final int APPEND_CHUNKS_MIN = 1 << 16;
+
+    /**
+     * Append str to the chunks kept for a string that would otherwise have to grow, see
+     * {@link StringIOData#appends}. Must be called under lock with pos at the end of the content.
+     *
+     * @return false if str has to go into the string itself
+     */
+    private static boolean appendChunk(Ruby runtime, StringIOData ptr, Encoding enc, RubyString str) {
+        RubyString string = ptr.string;
+        Encoding encStr = str.getEncoding();
+        Encoding binary = EncodingUtils.ascii8bitEncoding(runtime);
+        if (string.getEncoding() != enc) return false;
+        // the rest need catString to check or adjust the encoding
+        if (encStr != enc && enc != binary && encStr != binary && !str.isAsciiOnly()) return false;
+
+        ByteList strByteList = str.getByteList();
+        AppendBuffer appends = ptr.appends;
+        if (appends == null) {
+            if (ptr.growthFactor != 0 || ptr.maxGrowth != 0) return false;
+            ByteList bytes = string.getByteList();
+            int olen = bytes.getRealSize();
+            if (olen < APPEND_CHUNKS_MIN) return false;
+            if (bytes.getUnsafeBytes().length - bytes.getBegin() - olen >= strByteList.getRealSize()) return false;
+            ptr.appends = appends = new AppendBuffer();
+        }
+        appends.append(strByteList.getUnsafeBytes(), strByteList.getBegin(), strByteList.getRealSize());
+
+        return true;
+    }
+
+    private static final double DEFAULT_GROWTH_FACTOR = 2.0;
+    private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+    // least room reserved in front of the string for bytes pushed back before its start
+    private static final int PUSHBACK_MIN = 64;
+
+    /**
+     * Make room for needed bytes under the growth policy: the buffer grows by growth_factor, or doubles if only
+     * max_growth was given, but by no more than max_growth bytes at a time.
+     */
+    private static void growForWrite(StringIOData ptr, long needed) {
+        if (ptr.growthFactor == 0 && ptr.maxGrowth == 0) return;
+
+        RubyString string = ptr.string;
+        ByteList bytes = string.getByteList();
+        int capacity = bytes.getUnsafeBytes().length - bytes.getBegin();
+        // sizes past the limit are rejected by the write itself
+        if (needed <= capacity || needed > MAX_CAPACITY) return;
 
-        RubyString str = arg.asString();
-        int len, olen;
+        double factor = ptr.growthFactor == 0 ? DEFAULT_GROWTH_FACTOR : ptr.growthFactor;
+        long step = (long) (capacity * (factor - 1));
+        if (ptr.maxGrowth > 0 && step > ptr.maxGrowth) step = ptr.maxGrowth;
 
-        StringIOData ptr = this.getPtrForWrite();
+        growString(string, (int) Math.min(Math.max(needed, capacity + step), MAX_CAPACITY));
+    }
 
-        boolean locked = lock(context, ptr);
-        try {
-            final Encoding enc = getEncoding();
-            if (enc == null) return 0;
-            Encoding encStr = str.getEncoding();
-            if (enc != encStr && enc != ASCIIEncoding.INSTANCE && enc != USASCIIEncoding.INSTANCE) {
-                RubyString converted = EncodingUtils.strConvEnc(context, str, encStr, enc);
-                if (converted == str && encStr != ASCIIEncoding.INSTANCE && encStr != USASCIIEncoding.INSTANCE) { /* conversion failed */
-                    rb_enc_check(context, enc, str);
-                }
-                str = converted;
-                encStr = str.getEncoding();
-            }
-            final ByteList strByteList = str.getByteList();
-            len = str.size();
-            if (len == 0) return 0;
-            checkModifiable();
-            RubyString myString = ptr.string;
-            olen = myString.size();
-            if ((ptr.flags & OpenFile.APPEND) != 0) {
-                ptr.pos = olen;
-            }
-            int pos = ptr.pos;
-            if (pos == olen) {
-                if (enc == EncodingUtils.ascii8bitEncoding(runtime) || encStr == EncodingUtils.ascii8bitEncoding(runtime)) {
-                    EncodingUtils.encStrBufCat(runtime, myString, strByteList, enc);
-                } else {
-                    catString(myString, str);
-                }
-            } else {
-                strioExtend(context, pos, len);
-                modifyString(myString);
-                ByteList ptrByteList = myString.getByteList();
-                System.arraycopy(strByteList.getUnsafeBytes(), strByteList.getBegin(), ptrByteList.getUnsafeBytes(), ptrByteList.begin() + pos, len);
-            }
-            ptr.pos = pos + len;
-        } finally {
-            if (locked) unlock(ptr);
+    // make room for needed bytes in one step, under the growth policy if there is one
+    private static void reserveForWrite(StringIOData ptr, long needed) {
+        if (needed > MAX_CAPACITY) return;
+
+        if (ptr.growthFactor != 0 || ptr.maxGrowth != 0) {
+            growForWrite(ptr, needed);
+        } else {
+            ptr.string.modify((int) needed);
         }
+    }
 
-        return len;
+    // give the string a backing array of exactly capacity bytes, unless it already has room for that many
+    private static void growString(RubyString string, int capacity) {
+        string.modify();
+
+        ByteList bytes = string.getByteList();
+        if (bytes.getUnsafeBytes().length - bytes.getBegin() >= capacity) return;
+
+        byte[] grown = new byte[capacity];
+        System.arraycopy(bytes.getUnsafeBytes(), bytes.getBegin(), grown, 0, bytes.getRealSize());
+        bytes.setUnsafeBytes(grown);
+        bytes.setBegin(0);
     }
 
     private static void rb_enc_check(ThreadContext context, Encoding enc, CodeRangeable str) {
@@ -1821,9 +3568,9 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
             }
         }
 
-        StringIOData ptr = this.getPtrForWrite();
+        StringIOData ptr = this.getRawPtrForWrite();
 
-        boolean locked = lock(context, ptr);
+        boolean locked = lock(context, ptr, "set_encoding");
         try {
             ptr.enc = enc;
 
@@ -1857,7 +3604,7 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
 
     @JRubyMethod
     public IRubyObject set_encoding_by_bom(ThreadContext context) {
-        StringIOData ptr = getPtrForWrite();
+        StringIOData ptr = getPtrOrBufferForWrite();
 
         if (setEncodingByBOM(context, ptr) == null) return context.nil;
 
@@ -1865,9 +3612,11 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
     }
 
     private Encoding setEncodingByBOM(ThreadContext context, StringIOData ptr) {
-        Encoding enc = detectBOM(context, ptr.string, (ctx, enc2, bomlen) -> {
+        if (!hasContent(ptr)) return null;
+
+        Encoding enc = detectBOM(context, byteContent(ptr), contentSize(ptr), (ctx, enc2, bomlen) -> {
             ptr.pos = bomlen;
-            if (writable()) {
+            if (writable() && ptr.string != null) {
                 ptr.string.setEncoding(enc2);
             }
             return enc2;
@@ -1876,35 +3625,28 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
         return enc;
     }
 
-    private static Encoding detectBOM(ThreadContext context, RubyString str, ObjectObjectIntFunction<ThreadContext, Encoding, Encoding> callback) {
-        int p;
-        int len;
-
-        ByteList byteList = str.getByteList();
-        byte[] bytes = byteList.unsafeBytes();
-        p = byteList.begin();
-        len = byteList.realSize();
-
+    // content holds len bytes
+    private static Encoding detectBOM(ThreadContext context, ByteContent content, long len, ObjectObjectIntFunction<ThreadContext, Encoding, Encoding> callback) {
         if (len < 1) return null;
-        switch (toUnsignedInt(bytes[p])) {
+        switch (content.get(0)) {
             case 0xEF:
                 if (len < 3) break;
-                if (toUnsignedInt(bytes[p + 1]) == 0xBB && toUnsignedInt(bytes[p + 2]) == 0xBF) {
+                if (content.get(1) == 0xBB && content.get(2) == 0xBF) {
                     return callback.apply(context, UTF8Encoding.INSTANCE, 3);
                 }
                 break;
 
             case 0xFE:
                 if (len < 2) break;
-                if (toUnsignedInt(bytes[p + 1]) == 0xFF) {
+                if (content.get(1) == 0xFF) {
                     return callback.apply(context, UTF16BEEncoding.INSTANCE, 2);
                 }
                 break;
 
             case 0xFF:
                 if (len < 2) break;
-                if (toUnsignedInt(bytes[p + 1]) == 0xFE) {
-                    if (len >= 4 && toUnsignedInt(bytes[p + 2]) == 0 && toUnsignedInt(bytes[p + 3]) == 0) {
+                if (content.get(1) == 0xFE) {
+                    if (len >= 4 && content.get(2) == 0 && content.get(3) == 0) {
                         return callback.apply(context, UTF32LEEncoding.INSTANCE, 4);
                     }
                     return callback.apply(context, UTF16LEEncoding.INSTANCE, 2);
@@ -1913,7 +3655,7 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
 
             case 0:
                 if (len < 4) break;
-                if (toUnsignedInt(bytes[p + 1]) == 0 && toUnsignedInt(bytes[p + 2]) == 0xFE && toUnsignedInt(bytes[p + 3]) == 0xFF) {
+                if (content.get(1) == 0 && content.get(2) == 0xFE && content.get(3) == 0xFF) {
                     return callback.apply(context, UTF32BEEncoding.INSTANCE, 4);
                 }
                 break;
@@ -1940,11 +3682,24 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
 
         checkReadable();
 
-        StringIOData ptr = this.getPtrForWrite();
+        StringIOData ptr = this.getPtrOrBufferForWrite();
 
-        boolean locked = lock(context, ptr);
+        boolean locked = lock(context, ptr, "each_codepoint");
         try {
             final Encoding enc = getEncoding();
+            if (ptr.buffer != null) {
+                // the block may write past the end of the buffer, leaving a String in its place
+                while (ptr.buffer != null) {
+                    checkReadable();
+
+                    if (ptr.pos >= contentSize(ptr)) return this;
+
+                    int c = codePointBuffer(runtime, ptr.buffer, ptr.pos, enc);
+                    ptr.pos += StringSupport.codeLength(enc, c);
+                    block.yield(context, runtime.newFixnum(c));
+                }
+            }
+
             RubyString myString = ptr.string;
             final ByteList string = myString.getByteList();
             final byte[] stringBytes = string.getUnsafeBytes();
@@ -1953,10 +3708,10 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
                 // check readability for each loop, since it could get closed
                 checkReadable();
 
-                int pos = ptr.pos;
-                if (pos >= string.realSize()) return this;
+                if (ptr.pos >= string.realSize()) return this;
+                int pos = (int) ptr.pos;
 
-                int c = StringSupport.codePoint(runtime, enc, stringBytes, begin + pos, stringBytes.length);
+                int c = StringSupport.codePoint(runtime, enc, stringBytes, begin + pos, begin + string.realSize());
                 int n = StringSupport.codeLength(enc, c);
                 ptr.pos = pos + n;
                 block.yield(context, runtime.newFixnum(c));
@@ -1966,6 +3721,231 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
         }
     }
 
+    /**
+     * Read up to limit characters, or all that are left, in one locked pass. The strings are the ones getc would
+     * return. Single-byte and 7-bit content needs no length calculation and valid UTF-8 is measured inline, so in
+     * those cases the array is counted out first and allocated at its final size.
+     */
+    @JRubyMethod(name = "chars")
+    public IRubyObject chars(ThreadContext context) {
+        return charsCommon(context, Integer.MAX_VALUE);
+    }
+
+    @JRubyMethod(name = "chars")
+    public IRubyObject chars(ThreadContext context, IRubyObject limit) {
+        return charsCommon(context, bulkLimit(context, limit));
+    }
+
+    /**
+     * Read up to limit codepoints, or all that are left, in one locked pass, decoding with the same encoding as
+     * each_codepoint. Single-byte and 7-bit content maps bytes straight to codepoints and UTF-8 is decoded inline;
+     * invalid bytes raise ArgumentError before pos moves.
+     */
+    @JRubyMethod(name = "codepoints")
+    public IRubyObject codepoints(ThreadContext context) {
+        return codepointsCommon(context, Integer.MAX_VALUE);
+    }
+
+    @JRubyMethod(name = "codepoints")
+    public IRubyObject codepoints(ThreadContext context, IRubyObject limit) {
+        return codepointsCommon(context, bulkLimit(context, limit));
+    }
+
+    private static int bulkLimit(ThreadContext context, IRubyObject limit) {
+        if (limit.isNil()) return Integer.MAX_VALUE;
+
+        int n = RubyNumeric.num2int(limit);
+        if (n < 0) throw context.runtime.newArgumentError("negative limit " + n + " given");
+
+        return n;
+    }
+
+    private IRubyObject charsCommon(ThreadContext context, int limit) {
+        Ruby runtime = context.runtime;
+
+        checkReadable();
+
+        StringIOData ptr = this.getPtrOrBufferForWrite();
+
+        boolean locked = lock(context, ptr, "chars");
+        try {
+            if (limit == 0 || isEndOfString()) return RubyArray.newEmptyArray(runtime);
+
+            if (ptr.buffer != null) {
+                RubyArray<?> ary = runtime.newArray();
+                for (int count = 0; ptr.pos < ptr.buffer.size() && count < limit; count++) {
+                    ary.append(getcBuffer(context, ptr));
+                }
+                return ary;
+            }
+
+            RubyString string = ptr.string;
+            final ByteList bytes = string.getByteList();
+            final Encoding enc = bytes.getEncoding();
+            final byte[] stringBytes = bytes.getUnsafeBytes();
+            int begin = bytes.getBegin();
+            int s = (int) ptr.pos;
+            int e = bytes.getRealSize();
+            int p = s;
+            IRubyObject[] chars;
+
+            if (enc.isSingleByte() || string.getCodeRange() == StringSupport.CR_7BIT) {
+                chars = new IRubyObject[Math.min(limit, e - s)];
+                for (int i = 0; i < chars.length; i++, p++) {
+                    int b = stringBytes[begin + p] & 0xFF;
+                    chars[i] = b < 0x80 ? asciiChar(runtime, b, enc) : runtime.newString(bytes.makeShared(p, 1));
+                }
+            } else if (enc == UTF8Encoding.INSTANCE) {
+                int count = 0;
+                for (int q = s; q < e && count < limit; count++) {
+                    int n = utf8CharLength(stringBytes, begin + q, begin + e);
+                    q += n > 0 ? n : charLength(bytes, q);
+                }
+
+                chars = new IRubyObject[count];
+                for (int i = 0; i < count; i++) {
+                    int b = stringBytes[begin + p] & 0xFF;
+                    if (b < 0x80) {
+                        chars[i] = asciiChar(runtime, b, enc);
+                        p++;
+                        continue;
+                    }
+                    int n = utf8CharLength(stringBytes, begin + p, begin + e);
+                    if (n < 0) n = charLength(bytes, p);
+                    chars[i] = runtime.newString(bytes.makeShared(p, n));
+                    p += n;
+                }
+            } else {
+                RubyArray<?> ary = runtime.newArray();
+                for (int count = 0; p < e && count < limit; count++) {
+                    int n = charLength(bytes, p);
+                    ary.append(runtime.newString(bytes.makeShared(p, n)));
+                    p += n;
+                }
+                ptr.pos = p;
+                return ary;
+            }
+
+            ptr.pos = p;
+            return RubyArray.newArrayNoCopy(runtime, chars);
+        } finally {
+            if (locked) unlock(ptr);
+        }
+    }
+
+    private IRubyObject codepointsCommon(ThreadContext context, int limit) {
+        Ruby runtime = context.runtime;
+
+        checkReadable();
+
+        StringIOData ptr = this.getPtrOrBufferForWrite();
+
+        boolean locked = lock(context, ptr, "codepoints");
+        try {
+            if (limit == 0 || isEndOfString()) return RubyArray.newEmptyArray(runtime);
+
+            final Encoding enc = getEncoding();
+            BufferContent buffer = ptr.buffer;
+            if (buffer != null) {
+                RubyArray<?> ary = runtime.newArray();
+                long q = ptr.pos;
+                for (int count = 0; q < buffer.size() && count < limit; count++) {
+                    int c = codePointBuffer(runtime, buffer, q, enc);
+                    ary.append(runtime.newFixnum(c));
+                    q += StringSupport.codeLength(enc, c);
+                }
+                ptr.pos = q;
+                return ary;
+            }
+
+            RubyString string = ptr.string;
+            final ByteList bytes = string.getByteList();
+            final byte[] stringBytes = bytes.getUnsafeBytes();
+            int begin = bytes.getBegin();
+            int s = begin + (int) ptr.pos;
+            int e = begin + bytes.getRealSize();
+            int p = s;
+            IRubyObject[] codepoints;
+
+            if (enc.isSingleByte() || (enc.isAsciiCompatible() && string.getCodeRange() == StringSupport.CR_7BIT)) {
+                codepoints = new IRubyObject[Math.min(limit, e - s)];
+                for (int i = 0; i < codepoints.length; i++) {
+                    codepoints[i] = runtime.newFixnum(stringBytes[p++] & 0xFF);
+                }
+            } else if (enc == UTF8Encoding.INSTANCE) {
+                int count = 0;
+                for (int q = s; q < e && count < limit; count++) {
+                    int n = utf8CharLength(stringBytes, q, e);
+                    if (n < 0) StringSupport.codePoint(runtime, enc, stringBytes, q, e); // raises
+                    q += n;
+                }
+
+                codepoints = new IRubyObject[count];
+                for (int i = 0; i < count; i++) {
+                    int c = stringBytes[p] & 0xFF;
+                    if (c < 0x80) {
+                        p++;
+                    } else {
+                        int n = utf8CharLength(stringBytes, p, e);
+                        c &= 0x7F >> n;
+                        for (int j = 1; j < n; j++) c = (c << 6) | (stringBytes[p + j] & 0x3F);
+                        p += n;
+                    }
+                    codepoints[i] = runtime.newFixnum(c);
+                }
+            } else {
+                RubyArray<?> ary = runtime.newArray();
+                for (int count = 0; p < e && count < limit; count++) {
+                    int c = StringSupport.codePoint(runtime, enc, stringBytes, p, e);
+                    ary.append(runtime.newFixnum(c));
+                    p += StringSupport.codeLength(enc, c);
+                }
+                ptr.pos = p - begin;
+                return ary;
+            }
+
+            ptr.pos = p - begin;
+            return RubyArray.newArrayNoCopy(runtime, codepoints);
+        } finally {
+            if (locked) unlock(ptr);
+        }
+    }
+
+    /**
+     * @return the length of the well-formed UTF-8 character at bytes[p], or -1 if there is none before e
+     */
+    private static int utf8CharLength(byte[] bytes, int p, int e) {
+        int b = bytes[p] & 0xFF;
+        int n, min = 0x80, max = 0xBF;
+
+        if (b < 0x80) {
+            return 1;
+        } else if (b < 0xC2) {
+            return -1;
+        } else if (b < 0xE0) {
+            n = 2;
+        } else if (b < 0xF0) {
+            n = 3;
+            if (b == 0xE0) min = 0xA0; // overlong
+            if (b == 0xED) max = 0x9F; // surrogates
+        } else if (b < 0xF5) {
+            n = 4;
+            if (b == 0xF0) min = 0x90; // overlong
+            if (b == 0xF4) max = 0x8F; // above U+10FFFF
+        } else {
+            return -1;
+        }
+
+        if (e - p < n) return -1;
+        int b1 = bytes[p + 1] & 0xFF;
+        if (b1 < min || b1 > max) return -1;
+        for (int i = 2; i < n; i++) {
+            if ((bytes[p + i] & 0xC0) != 0x80) return -1;
+        }
+
+        return n;
+    }
+
     public static class GenericReadable {
         @JRubyMethod(name = "readchar")
         public static IRubyObject readchar(ThreadContext context, IRubyObject self) {
@@ -2057,19 +4037,38 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
         @JRubyMethod(name = "<<")
         public static IRubyObject append(ThreadContext context, IRubyObject self, IRubyObject arg) {
             // Claims conversion is done via 'to_s' in docs.
-            self.callMethod(context, "write", arg);
+            StringIO direct = directWriter(self);
+            if (direct != null) {
+                direct.write(context, arg);
+            } else {
+                self.callMethod(context, "write", arg);
+            }
 
             return self;
         }
 
         @JRubyMethod(name = "print", rest = true, writes = FrameField.LASTLINE)
         public static IRubyObject print(ThreadContext context, IRubyObject self, IRubyObject[] args) {
-            return RubyIO.print(context, self, args);
+            StringIO direct = directWriter(self);
+            GlobalVariables globals = context.runtime.getGlobalVariables();
+            // with no arguments or a $, separator, which is deprecated, leave it to IO
+            if (direct == null || args.length == 0 || !globals.get("$,").isNil()) {
+                return RubyIO.print(context, self, args);
+            }
+
+            IRubyObject rs = globals.get("$\\");
+            if (!rs.isNil()) {
+                args = Arrays.copyOf(args, args.length + 1);
+                args[args.length - 1] = rs;
+            }
+            direct.stringIOWrite(context, context.runtime, args);
+
+            return context.nil;
         }
 
         @JRubyMethod(name = "printf", required = 1, rest = true)
         public static IRubyObject printf(ThreadContext context, IRubyObject self, IRubyObject[] args) {
-            self.callMethod(context, "write", RubyKernel.sprintf(context, self, args));
+            append(context, self, RubyKernel.sprintf(context, self, args));
             return context.nil;
         }
 
@@ -2078,8 +4077,13 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
             // TODO: This should defer to RubyIO logic?
             Ruby runtime = context.runtime;
             if (args.length == 0) {
-                RubyIO.write(context, maybeIO, RubyString.newStringShared(runtime, NEWLINE));
-                return runtime.getNil();
+                return puts(context, maybeIO);
+            }
+
+            StringIO direct = directWriter(maybeIO);
+            if (direct != null) {
+                direct.stringIOWrite(context, runtime, putsLines(context, args));
+                return context.nil;
             }
 
             for (int i = 0; i < args.length; i++) {
@@ -2092,13 +4096,25 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
         @JRubyMethod(name = "puts")
         public static IRubyObject puts(ThreadContext context, IRubyObject maybeIO) {
             // TODO: This should defer to RubyIO logic?
-            RubyIO.write(context, maybeIO, RubyString.newStringShared(context.runtime, NEWLINE));
+            RubyString newline = RubyString.newStringShared(context.runtime, NEWLINE);
+            StringIO direct = directWriter(maybeIO);
+            if (direct != null) {
+                direct.write(context, newline);
+            } else {
+                RubyIO.write(context, maybeIO, newline);
+            }
             return context.nil;
         }
 
         @JRubyMethod(name = "puts")
         public static IRubyObject puts(ThreadContext context, IRubyObject maybeIO, IRubyObject arg0) {
             // TODO: This should defer to RubyIO logic?
+            StringIO direct = directWriter(maybeIO);
+            if (direct != null) {
+                direct.stringIOWrite(context, context.runtime, putsLines(context, arg0));
+                return context.nil;
+            }
+
             putsArg(context, maybeIO, arg0, context.runtime);
 
             return context.nil;
@@ -2106,25 +4122,94 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
 
         @JRubyMethod(name = "puts")
         public static IRubyObject puts(ThreadContext context, IRubyObject maybeIO, IRubyObject arg0, IRubyObject arg1) {
-            // TODO: This should defer to RubyIO logic?
-            Ruby runtime = context.runtime;
-
-            putsArg(context, maybeIO, arg0, runtime);
-            putsArg(context, maybeIO, arg1, runtime);
-
-            return context.nil;
+            return puts(context, maybeIO, new IRubyObject[] {arg0, arg1});
         }
 
         @JRubyMethod(name = "puts")
         public static IRubyObject puts(ThreadContext context, IRubyObject maybeIO, IRubyObject arg0, IRubyObject arg1, IRubyObject arg2) {
-            // TODO: This should defer to RubyIO logic?
+            return puts(context, maybeIO, new IRubyObject[] {arg0, arg1, arg2});
+        }
+
+        /**
+         * The StringIO to write to directly, or null if self is not a StringIO or has its own write.
+         */
+        private static StringIO directWriter(IRubyObject self) {
+            if (!(self instanceof StringIO)) return null;
+
+            return self.getMetaClass().searchWithCache("write").method.isNative() ? (StringIO) self : null;
+        }
+
+        /**
+         * Everything puts would write for args, in order, with the newlines it adds. Arrays are flattened with an
+         * explicit stack; an array nested in itself comes out as "[...]", as it does through inspectPuts.
+         */
+        private static IRubyObject[] putsLines(ThreadContext context, IRubyObject... args) {
             Ruby runtime = context.runtime;
+            RubyString newline = RubyString.newStringShared(runtime, NEWLINE);
+            List<IRubyObject> lines = new ArrayList<>(args.length * 2);
+            ArrayDeque<PutsFrame> arrays = new ArrayDeque<>();
+            PutsFrame frame = new PutsFrame(null, args);
+
+            while (true) {
+                if (frame.index == frame.elements.length) {
+                    if (arrays.isEmpty()) break;
+                    frame = arrays.pop();
+                    continue;
+                }
+
+                IRubyObject arg = frame.elements[frame.index++];
+                RubyString line = null;
+                if (!arg.isNil()) {
+                    IRubyObject tmp = arg.checkArrayType();
+                    if (!tmp.isNil()) {
+                        RubyArray<?> array = (RubyArray<?>) tmp;
+                        if (frame.contains(array, arrays)) {
+                            line = runtime.newString("[...]");
+                        } else if (array.size() == 0) {
+                            lines.add(newline);
+                            continue;
+                        } else {
+                            arrays.push(frame);
+                            frame = new PutsFrame(array, array.toJavaArray());
+                            continue;
+                        }
+                    } else {
+                        if (arg instanceof RubyString) {
+                            line = (RubyString) arg;
+                        } else {
+                            line = arg.asString();
+                        }
+                    }
+                }
 
-            putsArg(context, maybeIO, arg0, runtime);
-            putsArg(context, maybeIO, arg1, runtime);
-            putsArg(context, maybeIO, arg2, runtime);
+                if (line != null) lines.add(line);
 
-            return context.nil;
+                if (line == null || !line.getByteList().endsWith(NEWLINE)) {
+                    lines.add(newline);
+                }
+            }
+
+            return lines.toArray(IRubyObject.NULL_ARRAY);
+        }
+
+        private static final class PutsFrame {
+            final RubyArray<?> array;
+            final IRubyObject[] elements;
+            int index;
+
+            PutsFrame(RubyArray<?> array, IRubyObject[] elements) {
+                this.array = array;
+                this.elements = elements;
+            }
+
+            // whether array is already being written by this frame or one of the frames below it
+            boolean contains(RubyArray<?> array, ArrayDeque<PutsFrame> below) {
+                if (this.array == array) return true;
+                for (PutsFrame frame : below) {
+                    if (frame.array == array) return true;
+                }
+                return false;
+            }
         }
 
         private static void putsArg(ThreadContext context, IRubyObject maybeIO, IRubyObject arg, Ruby runtime) {
@@ -2184,6 +4269,122 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
         }
     }
 
+    /**
+     * Defined on StringIO when there is an IO::Buffer, to move bytes between one and the content with no String in
+     * between. IO::Buffer only copies to and from another IO::Buffer or a String, so the content is handed to it as
+     * IO::Buffer views over the StringIO's own bytes.
+     */
+    public static class BufferIO {
+        /**
+         * read_into(buffer, length = nil, offset = 0) -> integer
+         *
+         * Copy up to length bytes from the position into buffer at offset, or up to as many as fit after offset,
+         * and move the position past them. Returns the number of bytes copied, which is 0 at end of stream.
+         */
+        @JRubyMethod(name = "read_into", required = 1, optional = 2)
+        public static IRubyObject read_into(ThreadContext context, IRubyObject self, IRubyObject[] args) {
+            Ruby runtime = context.runtime;
+            StringIO strio = (StringIO) self;
+            RubyIOBuffer buffer = checkBuffer(context, args[0]);
+            int offset = checkOffset(context, args.length > 2 ? args[2] : context.nil);
+            int length = checkLength(context, buffer, args.length > 1 ? args[1] : context.nil, offset);
+
+            strio.checkReadable();
+            StringIOData ptr = strio.getPtrOrBufferForRead();
+
+            boolean locked = lock(context, ptr, "read_into");
+            try {
+                long rest = contentSize(ptr) - ptr.pos;
+                if (rest <= 0 || length == 0) return RubyFixnum.zero(runtime);
+                int n = (int) Math.min(length, rest);
+
+                for (ByteBuffer slice : contentSlices(ptr, ptr.pos, n)) {
+                    int len = slice.remaining();
+                    buffer.copy(context, view(runtime, slice, RubyIOBuffer.READONLY), offset, len, 0);
+                    offset += len;
+                }
+                ptr.pos += n;
+
+                return runtime.newFixnum(n);
+            } finally {
+                if (locked) unlock(ptr);
+            }
+        }
+
+        /**
+         * write_from(buffer, length = nil, offset = 0) -> integer
+         *
+         * Write length bytes of buffer starting at offset, or all of them from offset on, as write would write them
+         * as a binary String. Returns the number of bytes written.
+         */
+        @JRubyMethod(name = "write_from", required = 1, optional = 2)
+        public static IRubyObject write_from(ThreadContext context, IRubyObject self, IRubyObject[] args) {
+            Ruby runtime = context.runtime;
+            StringIO strio = (StringIO) self;
+            RubyIOBuffer buffer = checkBuffer(context, args[0]);
+            int offset = checkOffset(context, args.length > 2 ? args[2] : context.nil);
+            int length = checkLength(context, buffer, args.length > 1 ? args[1] : context.nil, offset);
+
+            strio.checkWritable();
+            StringIOData ptr = strio.getRawPtrForWrite();
+
+            boolean locked = lock(context, ptr, "write_from");
+            try {
+                if (length == 0 || !hasContent(ptr)) return RubyFixnum.zero(runtime);
+                strio.checkModifiable();
+
+                if ((ptr.flags & OpenFile.APPEND) != 0) ptr.pos = contentSize(ptr);
+                long pos = ptr.pos;
+                strio.extendContent(context, ptr, pos, length);
+
+                for (ByteBuffer slice : contentSlices(ptr, pos, length)) {
+                    int len = slice.remaining();
+                    // copy rejects a source offset past the number of bytes it copies, which a slice starts at 0
+                    RubyIOBuffer source = offset == 0 ? buffer : (RubyIOBuffer) buffer.slice(context, offset, len);
+                    view(runtime, slice, 0).copy(context, source, 0, len, 0);
+                    offset += len;
+                }
+                ptr.pos = pos + length;
+
+                return runtime.newFixnum(length);
+            } finally {
+                if (locked) unlock(ptr);
+            }
+        }
+
+        private static RubyIOBuffer checkBuffer(ThreadContext context, IRubyObject arg) {
+            if (!(arg instanceof RubyIOBuffer)) {
+                throw context.runtime.newTypeError("wrong argument type " + arg.getMetaClass().getName() + " (expected IO::Buffer)");
+            }
+            return (RubyIOBuffer) arg;
+        }
+
+        private static int checkOffset(ThreadContext context, IRubyObject arg) {
+            if (arg.isNil()) return 0;
+
+            int offset = RubyNumeric.num2int(arg);
+            if (offset < 0) throw context.runtime.newArgumentError("negative offset");
+            return offset;
+        }
+
+        // length, or what there is of buffer after offset if nil
+        private static int checkLength(ThreadContext context, RubyIOBuffer buffer, IRubyObject arg, int offset) {
+            int size = RubyNumeric.num2int(buffer.size(context));
+            if (offset > size) throw context.runtime.newArgumentError("offset bigger than the buffer size");
+            if (arg.isNil()) return size - offset;
+
+            int length = RubyNumeric.num2int(arg);
+            if (length < 0) throw context.runtime.newArgumentError("negative length");
+            if (length > size - offset) throw context.runtime.newArgumentError("offset + length bigger than the buffer size");
+            return length;
+        }
+
+        // an IO::Buffer over the remaining bytes of slice, only used for the one copy
+        private static RubyIOBuffer view(Ruby runtime, ByteBuffer slice, int flags) {
+            return RubyIOBuffer.newBuffer(runtime, slice.slice(), slice.remaining(), RubyIOBuffer.EXTERNAL | flags);
+        }
+    }
+
     public IRubyObject puts(ThreadContext context, IRubyObject[] args) {
         return GenericWritable.puts(context, this, args);
     }
@@ -2222,9 +4423,11 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
     }
 
     private void checkModifiable() {
-        final RubyString string = getPtrForWrite().string;
+        final StringIOData ptr = getRawPtrForWrite();
+        final RubyString string = ptr.string;
         if (string == null) {
-            /* Null device StringIO */
+            /* Null device StringIO, or one over a ByteBuffer */
+            if (ptr.buffer != null && ptr.buffer.isReadOnly()) throw getRuntime().newIOError("not modifiable string");
         } else if (string.isFrozen()) {
             throw getRuntime().newIOError("not modifiable string");
         } else {
@@ -2244,13 +4447,124 @@ public class StringIO extends RubyObject implements EncodingCapable, DataType {
         }
     }
 
-    private static boolean lock(ThreadContext context, StringIOData ptr) {
+    // operation names the method taking the lock, for the LockWait event if it has to wait
+    private static boolean lock(ThreadContext context, StringIOData ptr, String operation) {
         if (ptr.owner == context) return false;
-        while (!LOCKED_UPDATER.compareAndSet(ptr, null, context)); // lock
+        if (!LOCKED_UPDATER.compareAndSet(ptr, null, context)) lockContended(context, ptr, operation);
+        if (ptr.stats.enabled) ptr.stats.lockAcquisitions.increment();
         return true;
     }
 
+    /**
+     * Spin for a bounded number of tries, then park until the owner hands the lock off in
+     * {@link #unlock(StringIOData)}. The spin budget grows when spinning wins the lock and
+     * shrinks, down to a single try, when we end up parking anyway, so long-held locks stop
+     * burning a core. A waiter that leaves without the lock wakes the next one in its place.
+     */
+    private static void lockContended(ThreadContext context, StringIOData ptr, String operation) {
+        Object wait = StringIOEvents.beginLockWait();
+        int spins = ptr.spins;
+        for (int i = 0; i < spins; i++) {
+            onSpinWait();
+            if (ptr.owner == null && LOCKED_UPDATER.compareAndSet(ptr, null, context)) {
+                ptr.spins = Math.min(spins << 1, SPIN_MAX);
+                if (ptr.stats.enabled) ptr.stats.contendedSpins.add(i + 1);
+                if (wait != null) StringIOEvents.endLockWait(wait, operation, contentSize(ptr));
+                return;
+            }
+        }
+        ptr.spins = Math.max(spins >> 1, SPIN_MIN);
+        if (ptr.stats.enabled) ptr.stats.contendedSpins.add(spins);
+
+        @SuppressWarnings("unchecked")
+        ConcurrentLinkedQueue<Thread> waiters = ptr.waiters;
+        if (waiters == null) {
+            WAITERS_UPDATER.compareAndSet(ptr, null, new ConcurrentLinkedQueue<Thread>());
+            waiters = ptr.waiters;
+        }
+
+        Thread current = Thread.currentThread();
+        waiters.add(current);
+        boolean acquired = false;
+        try {
+            while (!LOCKED_UPDATER.compareAndSet(ptr, null, context)) {
+                try {
+                    context.getThread().executeTask(context, ptr, PARK);
+                } catch (InterruptedException e) {
+                    // the events that interrupted us are polled next
+                }
+
+                // let Thread#raise and Thread#kill through
+                context.pollThreadEvents();
+            }
+            acquired = true;
+        } finally {
+            waiters.remove(current);
+            // unlock may have woken this thread to take the lock; pass that on to the next one
+            if (!acquired) {
+                Thread next = waiters.peek();
+                if (next != null) LockSupport.unpark(next);
+            }
+        }
+        if (wait != null) StringIOEvents.endLockWait(wait, operation, contentSize(ptr));
+    }
+
+    /**
+     * Parks a thread waiting for a lock as a blocking task of its Ruby thread, which then sleeps as far as Ruby can
+     * tell and is woken by Thread#raise, Thread#kill or a signal as well as by {@link #unlock(StringIOData)}.
+     */
+    private static final RubyThread.Task<StringIOData, Object> PARK = new RubyThread.Task<StringIOData, Object>() {
+        @Override
+        public Object run(ThreadContext context, StringIOData ptr) {
+            LockSupport.park(ptr);
+            return null;
+        }
+
+        @Override
+        public void wakeup(RubyThread thread, StringIOData ptr) {
+            LockSupport.unpark(thread.getNativeThread());
+        }
+    };
+
     private static void unlock(StringIOData ptr) {
+        StringIOStats.Tracked tracked = ptr.tracked;
+        if (tracked != null) tracked.update(ptr);
+
         ptr.owner = null; // unlock
+
+        ConcurrentLinkedQueue<Thread> waiters = ptr.waiters;
+        if (waiters != null) {
+            Thread next = waiters.peek();
+            if (next != null) LockSupport.unpark(next);
+        }
+    }
+
+    private static final MethodHandle ON_SPIN_WAIT;
+
+    static {
+        MethodHandle onSpinWait;
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodType type = MethodType.methodType(void.class);
+        try {
+            onSpinWait = lookup.findStatic(Thread.class, "onSpinWait", type);
+        } catch (NoSuchMethodException | IllegalAccessException ex) {
+            try {
+                // Java 8
+                onSpinWait = lookup.findStatic(StringIO.class, "spinWait", type);
+            } catch (NoSuchMethodException | IllegalAccessException ex2) {
+                throw new ExceptionInInitializerError(ex2);
+            }
+        }
+        ON_SPIN_WAIT = onSpinWait;
+    }
+
+    private static void spinWait() {}
+
+    private static void onSpinWait() {
+        try {
+            ON_SPIN_WAIT.invokeExact();
+        } catch (Throwable t) {
+            Helpers.throwException(t);
+        }
     }
 }
@@ -0,0 +1,201 @@
+/***** BEGIN LICENSE BLOCK *****
+ * Version: EPL 2.0/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Eclipse Public
+ * License Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either of the GNU General Public License Version 2 or later (the "GPL"),
+ * or the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the EPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the EPL, the GPL or the LGPL.
+ ***** END LICENSE BLOCK *****/
+
+
+package org.jruby.ext.stringio;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * Flight Recorder events for waits on contended StringIO locks and for operations over large content, so that
+ * recordings taken in production show where StringIO stalls without attaching a profiler:
+ *
+ * <ul>
+ * <li>org.jruby.ext.stringio.LockWait, a thread waiting in operation, the StringIO method taking the lock, for
+ * another to release the lock of a StringIO holding bytes of content, recorded when the wait takes longer than its
+ * threshold, 10 ms unless the recording says otherwise;</li>
+ * <li>org.jruby.ext.stringio.LargeOperation, an operation such as a write that grows the String or a readlines
+ * over at least {@link #LARGE} bytes, set with the jruby.stringio.jfr.large system property.</li>
+ * </ul>
+ *
+ * Both also carry the thread, duration and stack trace every event has.
+ *
+ * The extension is built for Java 8, which has no jdk.jfr to compile against, so the event types are defined
+ * when this class loads through jdk.jfr.EventFactory and driven through method handles. Where there is no Flight
+ * Recorder nothing is recorded, and while no recording has the events enabled, asking for one costs a check.
+ */
+final class StringIOEvents {
+    private StringIOEvents() {}
+
+    static final long LARGE = Long.getLong("jruby.stringio.jfr.large", 8 << 20);
+
+    private static final Object LOCK_WAIT;
+    private static final Object LARGE_OPERATION;
+
+    private static final MethodHandle IS_ENABLED; // EventType.isEnabled()
+    private static final MethodHandle EVENT_TYPE; // EventFactory.getEventType()
+    private static final MethodHandle NEW_EVENT; // EventFactory.newEvent()
+    private static final MethodHandle BEGIN, END, SHOULD_COMMIT, COMMIT; // Event
+    private static final MethodHandle SET; // Event.set(int, Object)
+
+    static {
+        Object lockWait = null, largeOperation = null;
+        MethodHandle isEnabled = null, eventType = null, newEvent = null, begin = null, end = null, shouldCommit = null, commit = null, set = null;
+
+        try {
+            lockWait = define("org.jruby.ext.stringio.LockWait", "StringIO Lock Wait",
+                    "A thread waiting for another to release the lock of a StringIO", "10 ms",
+                    String.class, "operation", "Operation",
+                    long.class, "bytes", "Content Size");
+            largeOperation = define("org.jruby.ext.stringio.LargeOperation", "StringIO Large Operation",
+                    "An operation over the content of a StringIO of at least jruby.stringio.jfr.large bytes", "0 ms",
+                    String.class, "operation", "Operation",
+                    long.class, "bytes", "Bytes");
+
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> factory = Class.forName("jdk.jfr.EventFactory");
+            Class<?> type = Class.forName("jdk.jfr.EventType");
+            Class<?> event = Class.forName("jdk.jfr.Event");
+            isEnabled = lookup.findVirtual(type, "isEnabled", methodType(boolean.class)).asType(methodType(boolean.class, Object.class));
+            eventType = lookup.findVirtual(factory, "getEventType", methodType(type)).asType(methodType(Object.class, Object.class));
+            newEvent = lookup.findVirtual(factory, "newEvent", methodType(event)).asType(methodType(Object.class, Object.class));
+            begin = lookup.findVirtual(event, "begin", methodType(void.class)).asType(methodType(void.class, Object.class));
+            end = lookup.findVirtual(event, "end", methodType(void.class)).asType(methodType(void.class, Object.class));
+            shouldCommit = lookup.findVirtual(event, "shouldCommit", methodType(boolean.class)).asType(methodType(boolean.class, Object.class));
+            commit = lookup.findVirtual(event, "commit", methodType(void.class)).asType(methodType(void.class, Object.class));
+            set = lookup.findVirtual(event, "set", methodType(void.class, int.class, Object.class)).asType(methodType(void.class, Object.class, int.class, Object.class));
+        } catch (Throwable t) {
+            // no Flight Recorder on this JVM
+            lockWait = largeOperation = null;
+        }
+
+        LOCK_WAIT = lockWait;
+        LARGE_OPERATION = largeOperation;
+        IS_ENABLED = isEnabled;
+        EVENT_TYPE = eventType;
+        NEW_EVENT = newEvent;
+        BEGIN = begin;
+        END = end;
+        SHOULD_COMMIT = shouldCommit;
+        COMMIT = commit;
+        SET = set;
+    }
+
+    /**
+     * An EventFactory for a duration event in the JRuby/StringIO category with the given threshold, whose fields
+     * are given as type, name and label.
+     */
+    private static Object define(String name, String label, String description, String threshold, Object... fields) throws ReflectiveOperationException {
+        Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+        Constructor<?> annotation = annotationElement.getConstructor(Class.class, Object.class);
+        Class<?> labelType = Class.forName("jdk.jfr.Label");
+
+        List<Object> annotations = new ArrayList<>();
+        annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Name"), name));
+        annotations.add(annotation.newInstance(labelType, label));
+        annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Description"), description));
+        annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Category"), new String[] {"JRuby", "StringIO"}));
+        annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Threshold"), threshold));
+
+        Constructor<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class, List.class);
+        List<Object> values = new ArrayList<>();
+        for (int i = 0; i < fields.length; i += 3) {
+            Class<?> type = (Class<?>) fields[i];
+            List<Object> valueAnnotations = new ArrayList<>();
+            valueAnnotations.add(annotation.newInstance(labelType, fields[i + 2]));
+            if (type == long.class) {
+                valueAnnotations.add(annotation.newInstance(Class.forName("jdk.jfr.DataAmount"), "BYTES"));
+            }
+            values.add(valueDescriptor.newInstance(type, fields[i + 1], valueAnnotations));
+        }
+
+        return Class.forName("jdk.jfr.EventFactory")
+                .getMethod("create", List.class, List.class)
+                .invoke(null, annotations, values);
+    }
+
+    /**
+     * A LockWait started now, or null if no recording has it enabled.
+     */
+    static Object beginLockWait() {
+        return begin(LOCK_WAIT);
+    }
+
+    /**
+     * Finish a LockWait from {@link #beginLockWait()} now that the lock is held, recording it if it took long
+     * enough.
+     */
+    static void endLockWait(Object event, String operation, long bytes) {
+        end(event, operation, bytes);
+    }
+
+    /**
+     * A LargeOperation started now, or null if no recording has it enabled. Callers only ask for one over
+     * {@link #LARGE} bytes of content.
+     */
+    static Object beginLarge() {
+        return begin(LARGE_OPERATION);
+    }
+
+    static void endLarge(Object event, String operation, long bytes) {
+        end(event, operation, bytes);
+    }
+
+    private static Object begin(Object factory) {
+        if (factory == null) return null;
+
+        try {
+            if (!(boolean) IS_ENABLED.invokeExact((Object) EVENT_TYPE.invokeExact(factory))) return null;
+
+            Object event = (Object) NEW_EVENT.invokeExact(factory);
+            BEGIN.invokeExact(event);
+            return event;
+        } catch (Throwable t) {
+            return null;
+        }
+    }
+
+    // end event, and commit it with values for its fields in order if it passes the recording's threshold
+    private static void end(Object event, Object... values) {
+        try {
+            END.invokeExact(event);
+            if (!(boolean) SHOULD_COMMIT.invokeExact(event)) return;
+
+            for (int i = 0; i < values.length; i++) {
+                SET.invokeExact(event, i, values[i]);
+            }
+            COMMIT.invokeExact(event);
+        } catch (Throwable t) {
+            // recording is best effort
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/***** BEGIN LICENSE BLOCK *****
+ * Version: EPL 2.0/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Eclipse Public
+ * License Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either of the GNU General Public License Version 2 or later (the "GPL"),
+ * or the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the EPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the EPL, the GPL or the LGPL.
+ ***** END LICENSE BLOCK *****/
+
+
+package org.jruby.ext.stringio;
+
+import org.jruby.Finalizable;
+import org.jruby.Ruby;
+import org.jruby.RubyClass;
+import org.jruby.RubyString;
+import org.jruby.ext.stringio.StringIO.StringIOData;
+import org.jruby.util.ByteList;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the work the StringIOs of one runtime do and the memory behind them. They are off unless the
+ * jruby.stringio.stats system property is true or StringIO.stats_enabled = true has been called, and while off cost
+ * a read of {@link #enabled} wherever they would count. Once first enabled they are also published over JMX as
+ * {@value #OBJECT_NAME} with the runtime number as runtime, until the runtime is torn down.
+ *
+ * The counters are LongAdders, so that threads counting at once do not contend on them; a read adds up their cells
+ * and may miss counts made while it runs.
+ */
+public final class StringIOStats implements StringIOStatsMBean, Finalizable {
+    static final String OBJECT_NAME = "org.jruby.ext.stringio:type=StringIOStats";
+    private static final String VARIABLE = "stringio_stats";
+
+    volatile boolean enabled;
+
+    final LongAdder bytesRead = new LongAdder();
+    final LongAdder bytesWritten = new LongAdder();
+    final LongAdder getsCalls = new LongAdder();
+    final LongAdder readCalls = new LongAdder();
+    final LongAdder writeCalls = new LongAdder();
+    // backing arrays replaced by bigger ones, and bytes moved into them or written in
+    final LongAdder reallocations = new LongAdder();
+    final LongAdder bytesCopied = new LongAdder();
+    final LongAdder conversions = new LongAdder();
+    final LongAdder lockAcquisitions = new LongAdder();
+    final LongAdder contendedSpins = new LongAdder();
+    // bytes behind the tracked StringIOs, moved by their operations and taken back once they are collected
+    final LongAdder liveBytes = new LongAdder();
+
+    // the tracked StringIOs not collected yet, which the references need to stay reachable for
+    private final Set<Tracked> tracked = ConcurrentHashMap.newKeySet();
+    private final ReferenceQueue<StringIOData> collected = new ReferenceQueue<>();
+
+    private final int runtimeNumber;
+    private ObjectName registered;
+
+    private StringIOStats(Ruby runtime) {
+        this.runtimeNumber = runtime.getRuntimeNumber();
+    }
+
+    /**
+     * Create the stats of a runtime, for its StringIO class to keep.
+     */
+    static StringIOStats create(Ruby runtime) {
+        StringIOStats stats = new StringIOStats(runtime);
+        runtime.addInternalFinalizer(stats);
+        if (Boolean.getBoolean("jruby.stringio.stats")) stats.enable(true);
+        return stats;
+    }
+
+    void attach(RubyClass stringIOClass) {
+        stringIOClass.setInternalVariable(VARIABLE, this);
+    }
+
+    static StringIOStats of(Ruby runtime) {
+        return (StringIOStats) runtime.getClass("StringIO").getInternalVariable(VARIABLE);
+    }
+
+    synchronized void enable(boolean on) {
+        enabled = on;
+        if (on && registered == null) {
+            try {
+                ObjectName name = new ObjectName(OBJECT_NAME + ",runtime=" + runtimeNumber);
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+                registered = name;
+            } catch (JMException | SecurityException e) {
+                // JMX is not allowed, or has a runtime of that number from another copy of this class; the counters
+                // work regardless
+            }
+        }
+    }
+
+    /**
+     * Unregister from JMX as the runtime is torn down.
+     */
+    @Override
+    public synchronized void finalize() {
+        enabled = false;
+        if (registered == null) return;
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered);
+        } catch (JMException | SecurityException e) {
+            // already gone
+        }
+        registered = null;
+    }
+
+    /**
+     * Start counting the bytes behind ptr in {@link #liveBytes}, which {@link Tracked#update(StringIOData)} keeps up
+     * to date at the end of each of its operations.
+     */
+    void track(StringIOData ptr) {
+        expunge();
+        if (ptr.tracked != null) return;
+
+        Tracked reference = new Tracked(ptr, this);
+        tracked.add(reference);
+        ptr.tracked = reference;
+    }
+
+    // take back the bytes of the tracked StringIOs collected since last time
+    private void expunge() {
+        Reference<? extends StringIOData> reference;
+        while ((reference = collected.poll()) != null) {
+            Tracked dead = (Tracked) reference;
+            if (tracked.remove(dead)) liveBytes.add(-dead.bytes);
+        }
+    }
+
+    /**
+     * The bytes a tracked StringIO has been counted for in {@link #liveBytes}, given back when it is collected.
+     */
+    static final class Tracked extends PhantomReference<StringIOData> {
+        private final LongAdder liveBytes;
+        private long bytes;
+
+        Tracked(StringIOData ptr, StringIOStats stats) {
+            super(ptr, stats.collected);
+            this.liveBytes = stats.liveBytes;
+        }
+
+        /**
+         * Count the bytes of the String, buffer and pending appends now behind ptr; called under its lock.
+         */
+        void update(StringIOData ptr) {
+            long now = 0;
+            RubyString string = ptr.string;
+            if (string != null) now += string.getByteList().getUnsafeBytes().length;
+            BufferContent buffer = ptr.buffer;
+            if (buffer != null) now += buffer.capacity();
+            AppendBuffer appends = ptr.appends;
+            if (appends != null) now += appends.size();
+
+            if (now != bytes) {
+                liveBytes.add(now - bytes);
+                bytes = now;
+            }
+        }
+    }
+
+    // count a write that found the string's array as before and left it as after, having copied len bytes in
+    void copied(byte[] before, ByteList after, int olen, long len) {
+        if (before != after.getUnsafeBytes()) {
+            reallocations.increment();
+            len += olen;
+        }
+        bytesCopied.add(len);
+    }
+
+    /**
+     * The bytes of the Strings, buffers and pending appends behind the StringIOs initialized while enabled that
+     * have not been collected, as their last operations left them.
+     */
+    long liveBytes() {
+        expunge();
+        return liveBytes.sum();
+    }
+
+    void resetCounters() {
+        for (LongAdder counter : new LongAdder[] {bytesRead, bytesWritten, getsCalls, readCalls, writeCalls,
+                reallocations, bytesCopied, conversions, lockAcquisitions, contendedSpins}) {
+            counter.reset();
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        enable(enabled);
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getGetsCalls() {
+        return getsCalls.sum();
+    }
+
+    @Override
+    public long getReadCalls() {
+        return readCalls.sum();
+    }
+
+    @Override
+    public long getWriteCalls() {
+        return writeCalls.sum();
+    }
+
+    @Override
+    public long getReallocations() {
+        return reallocations.sum();
+    }
+
+    @Override
+    public long getBytesCopied() {
+        return bytesCopied.sum();
+    }
+
+    @Override
+    public long getConversions() {
+        return conversions.sum();
+    }
+
+    @Override
+    public long getLockAcquisitions() {
+        return lockAcquisitions.sum();
+    }
+
+    @Override
+    public long getContendedSpins() {
+        return contendedSpins.sum();
+    }
+
+    @Override
+    public long getLiveBytes() {
+        return liveBytes();
+    }
+
+    @Override
+    public void reset() {
+        resetCounters();
+    }
+}
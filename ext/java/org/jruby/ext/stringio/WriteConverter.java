@@ -0,0 +1,114 @@
+/***** BEGIN LICENSE BLOCK *****
+ * Version: EPL 2.0/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Eclipse Public
+ * License Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either of the GNU General Public License Version 2 or later (the "GPL"),
+ * or the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the EPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the EPL, the GPL or the LGPL.
+ ***** END LICENSE BLOCK *****/
+
+package org.jruby.ext.stringio;
+
+import org.jcodings.Encoding;
+import org.jcodings.Ptr;
+import org.jcodings.transcode.EConv;
+import org.jcodings.transcode.EConvResult;
+import org.jcodings.transcode.TranscoderDB;
+import org.jruby.RubyString;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.util.ByteList;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Converts strings written to a StringIO into its encoding, as EncodingUtils.strConvEnc does, with the transcoder
+ * path for each pair of encodings looked up only once.
+ *
+ * An EConv cannot be reset once it has finished, so every conversion still opens a new one; what is cached is the
+ * search through the transcoder graph, which is most of the cost of opening it. The transcoder database is global
+ * and the set of encodings is small, so the cache is too.
+ */
+final class WriteConverter {
+    private WriteConverter() {}
+
+    private static final TranscoderDB.Entry[] NO_PATH = new TranscoderDB.Entry[0];
+
+    private static final ConcurrentHashMap<Encoding, ConcurrentHashMap<Encoding, TranscoderDB.Entry[]>> PATHS =
+            new ConcurrentHashMap<>();
+
+    /**
+     * @return str converted from one encoding to the other, or str itself if there is no converter between them or
+     * it could not be converted
+     */
+    static RubyString convert(ThreadContext context, RubyString str, Encoding from, Encoding to) {
+        TranscoderDB.Entry[] path = path(from, to);
+        if (path.length == 0) return str;
+
+        EConv ec = TranscoderDB.alloc(path.length);
+        for (TranscoderDB.Entry entry : path) {
+            ec.addConverter(entry.getSource(), entry.getDestination(), ec.numTranscoders);
+        }
+        ec.source = from.getName();
+        ec.destination = to.getName();
+        ec.sourceEncoding = from;
+        ec.destinationEncoding = to;
+
+        ByteList value = str.getByteList();
+        byte[] src = value.getUnsafeBytes();
+        int len = value.getRealSize();
+        Ptr sp = new Ptr(value.getBegin());
+        int send = sp.p + len;
+        ByteList dest = new ByteList(len);
+        Ptr dp = new Ptr(0);
+
+        EConvResult res;
+        while ((res = ec.convert(src, sp, send, dest.getUnsafeBytes(), dp, dest.getUnsafeBytes().length, 0)) == EConvResult.DestinationBufferFull) {
+            dest.setRealSize(dp.p);
+            dest.ensure(dp.p + Math.max(send - sp.p, 8) * 2);
+        }
+        ec.close();
+
+        if (res != EConvResult.Finished) return str;
+
+        dest.setRealSize(dp.p);
+        dest.setEncoding(to);
+        return RubyString.newString(context.runtime, dest);
+    }
+
+    private static TranscoderDB.Entry[] path(Encoding from, Encoding to) {
+        ConcurrentHashMap<Encoding, TranscoderDB.Entry[]> paths = PATHS.get(from);
+        if (paths == null) paths = PATHS.computeIfAbsent(from, f -> new ConcurrentHashMap<>());
+
+        TranscoderDB.Entry[] path = paths.get(to);
+        if (path == null) paths.put(to, path = searchPath(from, to));
+
+        return path;
+    }
+
+    private static TranscoderDB.Entry[] searchPath(Encoding from, Encoding to) {
+        TranscoderDB.Entry[][] path = {NO_PATH};
+        int length = TranscoderDB.searchPath(from.getName(), to.getName(), (source, destination, depth) -> {
+            if (path[0] == NO_PATH) path[0] = new TranscoderDB.Entry[depth + 1];
+            path[0][depth] = TranscoderDB.getEntry(source, destination);
+        });
+
+        return length <= 0 ? NO_PATH : path[0];
+    }
+}
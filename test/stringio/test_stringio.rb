@@ -185,6 +185,39 @@ class TestStringIO < Test::Unit::TestCase
     assert_equal("def\r\n", stringio.gets("", chomp: true))
   end
 
+  def test_gets_chomp_long_separator
+    sep = "-" * 20
+    stringio = StringIO.new("a" * 1024 + sep + "b" * 1024 + sep + "c")
+    assert_equal("a" * 1024, stringio.gets(sep, chomp: true))
+    assert_equal("b" * 1024, stringio.gets(sep, chomp: true))
+    assert_equal("c", stringio.gets(sep, chomp: true))
+    assert_nil(stringio.gets(sep, chomp: true))
+  end
+
+  def test_gets_long_lines
+    random = Random.new(0)
+    words = ["a", "bc", "\r", "\n", "\r\n", "sep", "s", "x" * 17, "-" * 40]
+    str = Array.new(2000) { words[random.rand(words.size)] }.join
+    ["\n", "\r\n", "sep", "x" * 17].each do |sep|
+      [false, true].each do |chomp|
+        expected = str.each_line(sep, chomp: chomp).to_a
+        f = StringIO.new(str)
+        lines = []
+        while line = f.gets(sep, chomp: chomp)
+          lines << line
+        end
+        assert_equal(expected, lines, "sep=#{sep.inspect} chomp=#{chomp}")
+      end
+    end
+    f = StringIO.new(str)
+    paragraphs = []
+    while paragraph = f.gets("")
+      paragraphs << paragraph
+    end
+    assert_equal(str.each_line("").count, paragraphs.size)
+    assert_equal(str.sub(/\A\n+/, ""), paragraphs.join)
+  end
+
   def test_readlines
     assert_equal([], StringIO.new("").readlines)
     assert_equal(["\n"], StringIO.new("\n").readlines)
@@ -197,6 +230,20 @@ class TestStringIO < Test::Unit::TestCase
     assert_equal(["abc\n\n", "def\n"], StringIO.new("abc\n\ndef\n").readlines(""))
   end
 
+  def test_readlines_long
+    str = Array.new(1000) {|i| "line #{i}" + "\r" * (i % 2) + "\n" * (i % 3) }.join
+    ["\n", "e"].each do |sep|
+      [false, true].each do |chomp|
+        f = StringIO.new(str)
+        f.gets(sep)
+        lines = f.readlines(sep, chomp: chomp)
+        assert_equal(str.each_line(sep, chomp: chomp).drop(1), lines)
+        assert_equal(lines.size + 1, f.lineno)
+        assert_predicate(f, :eof?)
+      end
+    end
+  end
+
   def test_write
     s = ""
     f = StringIO.new(s, "w")
@@ -290,6 +337,58 @@ class TestStringIO < Test::Unit::TestCase
     end
   end
 
+  def test_write_large_appends
+    chunk = "0123456789abcdef" * 64
+    expected = chunk * 1000
+    f = StringIO.new
+    1000.times { f.write(chunk) }
+    assert_equal(expected.size, f.size)
+    assert_equal(expected.size, f.pos)
+    assert_predicate(f, :eof?)
+    f.pos -= 4
+    assert_equal("cdef", f.read)
+    f.write("\u3042", "x")
+    expected << "\u3042x"
+    assert_equal(expected, f.string)
+    assert_predicate(f.string, :valid_encoding?)
+
+    f = StringIO.new
+    1000.times { f.print(chunk) }
+    f.seek(10)
+    f.write("X")
+    f.seek(0, IO::SEEK_END)
+    f << "end"
+    assert_equal(chunk[0, 10] + "X" + (chunk * 1000)[11..] + "end", f.string)
+
+    f = StringIO.new
+    s = f.string
+    1000.times { f.write(chunk) }
+    assert_equal(chunk * 1000, s)
+    assert_same(s, f.string)
+    f.write("more")
+    assert_equal(chunk * 1000 + "more", s)
+  end
+
+  def test_write_encoding_conversion_repeated
+    s = StringIO.new.set_encoding(Encoding::EUC_JP)
+    3.times do
+      s.write("ascii ".encode("Shift_JIS"), "\u{3042}".encode("Shift_JIS"), "\u{3044}\n")
+    end
+    assert_equal(Encoding::EUC_JP, s.string.encoding)
+    assert_equal("ascii \u{3042}\u{3044}\n" * 3, s.string.encode("UTF-8"))
+
+    s = StringIO.new.set_encoding(Encoding::UTF_16LE)
+    s.write("ab".encode("EUC-JP"), "c")
+    s.write("d".encode("Shift_JIS"))
+    assert_equal("abcd".encode("UTF-16LE"), s.string)
+
+    s = StringIO.new.set_encoding(Encoding::UTF_8)
+    assert_raise(Encoding::CompatibilityError) { s.write("\xA4".force_encoding("EUC-JP")) }
+    s.write("ok".encode("EUC-JP"))
+    assert_equal("ok", s.string)
+    assert_equal(Encoding::UTF_8, s.string.encoding)
+  end
+
   def test_write_integer_overflow
     f = StringIO.new
     f.pos = StringIO::MAX_LENGTH
@@ -308,6 +407,93 @@ class TestStringIO < Test::Unit::TestCase
     f.close unless f.closed?
   end
 
+  def test_write_many_fragments
+    f = StringIO.new(+"0123456789")
+    f.pos = 2
+    assert_equal(5, f.write("ab", :cd, 7))
+    assert_equal("01abcd7789", f.string)
+    assert_equal(7, f.pos)
+    assert_equal(4, f.write("x", "", "yz", "w", nil))
+    assert_equal("01abcd7xyzw", f.string)
+
+    f.pos = 14
+    assert_equal(4, f.write("a", "b", "c", "d"))
+    assert_equal("01abcd7xyzw\0\0\0abcd", f.string)
+
+    f = StringIO.new(+"head", "a")
+    f.pos = 0
+    assert_equal(6, f.write(*%w[a b c], "d", "e", "f"))
+    assert_equal("headabcdef", f.string)
+
+    f = StringIO.new.set_encoding(Encoding::UTF_8)
+    f.write("a".encode("UTF-16LE"), "\u{3042}".encode("EUC-JP"), "b".b)
+    assert_equal("a\u{3042}b", f.string)
+  end
+
+  def test_puts_arrays
+    f = StringIO.new
+    a = [1, [2, [], nil], "3\n"]
+    a << a
+    f.puts(a, [], nil, "x")
+    assert_equal("1\n2\n\n\n3\n[...]\n\n\nx\n", f.string)
+
+    f = StringIO.new
+    f.puts
+    f.puts("a", "b")
+    f.puts(["c"], "d", "e")
+    assert_equal("\na\nb\nc\nd\ne\n", f.string)
+  end
+
+  def test_puts_print_with_write_overridden
+    c = Class.new(StringIO) do
+      def write(*args)
+        super(*args.map(&:upcase))
+      end
+    end
+    f = c.new
+    f.puts("a", ["b"])
+    f.print("c", "d")
+    f << "e"
+    f.printf("%s", "f")
+    assert_equal("A\nB\nCDEF", f.string)
+  end
+
+  def test_print_output_record_separator
+    f = StringIO.new
+    verbose, $VERBOSE = $VERBOSE, nil
+    begin
+      $\ = "!"
+      f.print("a", :b, 1)
+    ensure
+      $\ = nil
+      $VERBOSE = verbose
+    end
+    f << "c" << 2
+    assert_equal("ab1!c2", f.string)
+  end
+
+  def test_write_from_threads
+    f = StringIO.new
+    reader = Thread.new do
+      200.times.map do
+        # a copy of its own, so that reading does not move the writers
+        g = StringIO.new(f.pread(f.size, 0))
+        bytes = 0
+        g.each_byte { bytes += 1 }
+        [bytes, g.string]
+      end
+    end
+    4.times.map {|i|
+      Thread.new { 1000.times { f.write(i.to_s * 10) } }
+    }.each(&:join)
+    reader.value.each do |bytes, string|
+      assert_equal(string.bytesize, bytes)
+      assert_match(/\A(?:0{10}|1{10}|2{10}|3{10})*\z/, string)
+    end
+    assert_equal(40_000, f.size)
+    4.times {|i| assert_equal(10_000, f.string.count(i.to_s)) }
+  end
+
   def test_set_encoding
     bug10285 = '[ruby-core:65240] [Bug #10285]'
     f = StringIO.new()
@@ -619,6 +805,32 @@ class TestStringIO < Test::Unit::TestCase
     end
   end
 
+  def test_each_char_ascii
+    s = "abcあdef" * 100
+    f = StringIO.new(s)
+    assert_equal(s.chars, f.each_char.to_a)
+    assert_predicate(f, :eof?)
+
+    s = +"abcdef"
+    assert_predicate(s, :ascii_only?)
+    f = StringIO.new(s)
+    f.read(3)
+    f.ungetbyte("あ".b)
+    assert_not_predicate(s, :ascii_only?)
+    assert_equal(["あ", "d", "e", "f"], f.each_char.to_a)
+
+    f = StringIO.new(+"abc")
+    chars = f.each_char.map {|c| (f.write("あ"); f.pos = 1) if c == "a"; c }
+    assert_equal(["a", "あ"], chars)
+  end
+
+  def test_each_char_broken
+    f = StringIO.new("a\xE3\x81".force_encoding(Encoding::UTF_8))
+    assert_equal(["a", "\xE3", "\x81"], f.each_char.to_a)
+    f = StringIO.new("a\0b".force_encoding(Encoding::UTF_16LE))
+    assert_equal(["a\0".b, "b".b], f.each_char.map(&:b))
+  end
+
   def test_each_codepoint
     f = StringIO.new("1234")
     assert_equal([49, 50, 51, 52], f.each_codepoint.to_a)
@@ -691,6 +903,21 @@ class TestStringIO < Test::Unit::TestCase
     assert_equal(["ab", "c\n", "\nd", "ef", "\n"], f.each(nil, 2, chomp: true).to_a)
   end
 
+  def test_each_modified_in_block
+    f = StringIO.new(+"foo\n")
+    lines = []
+    f.each {|line| lines << line; f.string << "bar\n" if lines.size == 1 }
+    assert_equal(["foo\n", "bar\n"], lines)
+
+    f = StringIO.new("foo\nbar\n")
+    lines = []
+    f.each {|line| lines << line; f.reopen(StringIO.new("baz\nqux\n")) if lines.size == 1 }
+    assert_equal(["foo\n", "baz\n", "qux\n"], lines)
+
+    f = StringIO.new("foo\nbar\n")
+    assert_raise(IOError) { f.each { f.close_read } }
+  end
+
   def test_putc
     s = ""
     f = StringIO.new(s, "w")
@@ -0,0 +1,799 @@
+# frozen_string_literal: true
+require 'test/unit'
+require 'stringio'
+require 'tempfile'
+require 'jruby' if RUBY_ENGINE == "jruby"
+
+# Extensions only provided by the JRuby implementation of StringIO.
+class TestStringIOJRuby < Test::Unit::TestCase
+  def setup
+    omit unless RUBY_ENGINE == "jruby"
+  end
+
+  def test_line_offset
+    f = StringIO.new("foo\nbar\n\nbaz")
+    assert_equal([0, 4, 8, 9, nil], (0..4).map {|n| f.line_offset(n)})
+    assert_equal(0, f.pos)
+
+    f = StringIO.new("foo\n")
+    assert_equal([0, 4, nil], (0..2).map {|n| f.line_offset(n)})
+    assert_equal(0, StringIO.new("").line_offset(0))
+    assert_raise(ArgumentError) { f.line_offset(-1) }
+  end
+
+  def test_seek_line
+    f = StringIO.new("foo\nbar\nbaz\n")
+    assert_equal(0, f.seek_line(2))
+    assert_equal(8, f.pos)
+    assert_equal(2, f.lineno)
+    assert_equal("baz\n", f.gets)
+    assert_equal(3, f.lineno)
+
+    f.seek_line(0)
+    assert_equal("foo\n", f.gets)
+    f.seek_line(3)
+    assert_predicate(f, :eof?)
+    assert_raise(EOFError) { f.seek_line(4) }
+  end
+
+  def test_seek_line_many
+    lines = Array.new(10000) {|i| "line #{i}\n" }
+    f = StringIO.new(lines.join)
+    [9999, 0, 5000, 5001, 1].each do |n|
+      f.seek_line(n)
+      assert_equal(lines[n], f.gets)
+    end
+  end
+
+  def test_line_offset_after_write
+    f = StringIO.new(+"aaa\nbbb\nccc\n")
+    assert_equal(8, f.line_offset(2))
+    f.pos = 1
+    f.write("\n")
+    assert_equal([0, 2, 4, 8, 12, nil], (0..5).map {|n| f.line_offset(n)})
+
+    f.pos = 6
+    f.write("xxxxxxxxxx")
+    assert_equal([0, 2, 4, nil], (0..3).map {|n| f.line_offset(n)})
+
+    f.write("\nmore\n")
+    assert_equal([0, 2, 4, 17, 22, nil], (0..5).map {|n| f.line_offset(n)})
+  end
+
+  def test_line_offset_after_truncate
+    f = StringIO.new(+"aaa\nbbb\nccc\n")
+    assert_equal(12, f.line_offset(3))
+    f.truncate(6)
+    assert_equal([0, 4, nil], (0..2).map {|n| f.line_offset(n)})
+    f.truncate(10)
+    assert_equal([0, 4, nil], (0..2).map {|n| f.line_offset(n)})
+  end
+
+  def test_line_offset_after_ungetc
+    f = StringIO.new(+"aaa\nbbb\n")
+    assert_equal(4, f.line_offset(1))
+    f.ungetc("x\n")
+    assert_equal([0, 2, 6, 10, nil], (0..4).map {|n| f.line_offset(n)})
+
+    f.gets
+    f.getc
+    f.ungetbyte("\n")
+    assert_equal([0, 2, 3, 6, 10, nil], (0..5).map {|n| f.line_offset(n)})
+  end
+
+  def test_line_offset_after_string_replaced
+    f = StringIO.new(+"aaa\nbbb\n")
+    assert_equal(8, f.line_offset(2))
+    f.string = +"a\nb\n"
+    assert_equal([0, 2, 4, nil], (0..3).map {|n| f.line_offset(n)})
+    f.string.clear
+    assert_equal([0, nil], (0..1).map {|n| f.line_offset(n)})
+  end
+
+  def test_line_offset_byte_buffer
+    buffer = direct_buffer("foo\nbar\nbaz")
+    f = StringIO.new(buffer)
+    assert_equal([0, 4, 8, nil], (0..3).map {|n| f.line_offset(n)})
+    assert_equal(0, f.seek_line(1))
+    f.write("b\nr")
+    # written in place, so the lines were found without copying the buffer
+    assert_equal("b\nr", (4..6).map {|i| buffer.get(i).chr}.join)
+    assert_equal([0, 4, 6, 8, nil], (0..4).map {|n| f.line_offset(n)})
+    f.truncate(5)
+    assert_equal([0, 4, nil], (0..2).map {|n| f.line_offset(n)})
+  end
+
+  def test_each_line_with_offset
+    f = StringIO.new("foo\nbar\n\n\nbaz")
+    assert_equal([["foo\n", 0], ["bar\n", 4], ["\n", 8], ["\n", 9], ["baz", 10]],
+                 f.each_line_with_offset.to_a)
+
+    f.rewind
+    assert_equal([["foo", 0], ["bar", 4], ["", 8], ["", 9], ["baz", 10]],
+                 f.each_line_with_offset(chomp: true).to_a)
+
+    f.rewind
+    assert_equal([["foo\nbar\n\n\n", 0], ["baz", 10]], f.each_line_with_offset("").to_a)
+
+    f.rewind
+    assert_equal([["fo", 0], ["o\n", 2], ["ba", 4]], f.each_line_with_offset(nil, 2).first(3))
+
+    f = StringIO.new("\n\nfoo\n\n\nbar")
+    assert_equal([["foo\n\n\n", 2], ["bar", 8]], f.each_line_with_offset("").to_a)
+    assert_raise(ArgumentError) { f.each_line_with_offset(0) {} }
+  end
+
+  def test_chars
+    s = "abcあいう\xE3\x81def" * 50
+    f = StringIO.new(s)
+    assert_equal(s.chars.first(3), f.chars(3))
+    assert_equal(3, f.pos)
+    assert_equal(s.chars.drop(3).first(100), f.chars(100))
+    assert_equal(s.chars.drop(103), f.chars)
+    assert_predicate(f, :eof?)
+    assert_equal([], f.chars)
+    assert_equal([], f.chars(10))
+
+    f = StringIO.new("abc".encode("UTF-16LE"))
+    assert_equal(["a", "b", "c"].map {|c| c.encode("UTF-16LE") }, f.chars(nil))
+    f = StringIO.new("ab\xFF".b)
+    assert_equal(["a", "b", "\xFF".b], f.chars)
+    assert_equal([], StringIO.new("abc").chars(0))
+    assert_raise(ArgumentError) { StringIO.new("abc").chars(-1) }
+    assert_raise(IOError) { StringIO.new(+"abc", "w").chars }
+  end
+
+  def test_codepoints
+    s = "abcあいう😀def" * 50
+    f = StringIO.new(s)
+    assert_equal(s.codepoints.first(3), f.codepoints(3))
+    assert_equal(3, f.pos)
+    assert_equal(s.codepoints.drop(3).first(100), f.codepoints(100))
+    assert_equal(s.codepoints.drop(103), f.codepoints)
+    assert_equal([], f.codepoints)
+
+    f = StringIO.new("ab\xFF".b)
+    assert_equal([97, 98, 255], f.codepoints)
+    f = StringIO.new("aé".encode("EUC-JP"))
+    assert_equal("aé".encode("EUC-JP").codepoints, f.codepoints)
+    f = StringIO.new("aé".encode("UTF-16LE"))
+    assert_equal("aé".encode("UTF-16LE").codepoints, f.codepoints)
+
+    f = StringIO.new("ab\xE3\x81c")
+    assert_raise(ArgumentError) { f.codepoints }
+    assert_equal(0, f.pos)
+    assert_equal([97, 98], f.codepoints(2))
+    ["\xED\xA0\x80", "\xF4\x90\x80\x80", "\xC0\xAF", "\xF5\x80\x80\x80"].each do |bad|
+      assert_raise(ArgumentError, bad.dump) { StringIO.new(bad).codepoints }
+    end
+  end
+
+  def test_capacity
+    f = StringIO.new(+"abc", "a", capacity: 1000)
+    f.write("def")
+    assert_equal("abcdef", f.string)
+    assert_equal("", StringIO.new(capacity: 10).string)
+    assert_equal("abc", StringIO.new("abc", capacity: 10).read)
+    assert_raise(ArgumentError) { StringIO.new(+"", capacity: -1) }
+  end
+
+  def test_growth_policy
+    f = StringIO.new(+"", growth_factor: 1.5, max_growth: 100)
+    1000.times {|i| f.write(i.to_s) }
+    assert_equal((0...1000).map(&:to_s).join, f.string)
+
+    f = StringIO.new(+"ab", max_growth: 7)
+    f.pos = 20
+    f.write("z")
+    assert_equal("ab" + "\0" * 18 + "z", f.string)
+
+    assert_raise(ArgumentError) { StringIO.new(+"", growth_factor: 1) }
+    assert_raise(ArgumentError) { StringIO.new(+"", max_growth: 0) }
+  end
+
+  def test_reserve
+    f = StringIO.new(+"abc")
+    assert_same(f, f.reserve(100))
+    assert_equal("abc", f.string)
+    f.read(1)
+    f.write("x" * 50)
+    assert_equal("a" + "x" * 50, f.string)
+    assert_same(f, f.reserve(0))
+
+    assert_raise(ArgumentError) { f.reserve(-1) }
+    assert_raise(IOError) { StringIO.new("abc".freeze).reserve(10) }
+  end
+
+  def test_byte_buffer
+    f = StringIO.new(direct_buffer("xxfoo\nbar\n\n\nbaz\u3042", 2))
+    assert_equal(Encoding.default_external, f.external_encoding)
+    assert_equal(16, f.size)
+    assert_equal("foo\n", f.gets)
+    assert_equal("ba", f.read(2))
+    assert_equal("r", f.getc)
+    assert_equal(10, f.getbyte)
+    assert_equal("\n\nbaz\u3042", f.read)
+    assert_predicate(f, :eof?)
+    assert_nil(f.gets)
+    assert_equal("bar", f.pread(3, 4))
+    assert_equal("", f.read)
+    assert_nil(f.read(1))
+
+    f.seek(-4, IO::SEEK_END)
+    assert_equal("z", f.getc)
+    assert_equal("\u3042", f.getc)
+    f.rewind
+    assert_equal(["foo", "bar", "", "", "baz\u3042"], f.each_line(chomp: true).to_a)
+    f.rewind
+    assert_equal(["foo\nbar\n\n\n", "baz\u3042"], f.readlines(""))
+    f.rewind
+    assert_equal(["foo\nbar", "\n\n\nb"], [f.gets("ar"), f.gets("b")])
+    assert_equal("az\u3042", f.gets(3))
+    f.seek(-2, IO::SEEK_END)
+    assert_equal([0x81, 0x82], f.each_byte.to_a)
+
+    outbuf = +"x"
+    f.rewind
+    assert_same(outbuf, f.read(3, outbuf))
+    assert_equal("foo", outbuf)
+
+    sep = "-" * 20 + "\n"
+    src = "a" * 2000 + sep + "b" * 10 + "\r\n"
+    f = StringIO.new(direct_buffer(src))
+    assert_equal(["a" * 2000, "b" * 10 + "\r\n"], [f.gets(sep, chomp: true), f.gets(sep)])
+    f.rewind
+    assert_equal(StringIO.new(src).gets(nil, chomp: true), f.gets(nil, chomp: true))
+  end
+
+  def test_byte_buffer_read_only
+    buffer = direct_buffer("foo\nbar\n").asReadOnlyBuffer
+    assert_raise(Errno::EACCES) { StringIO.new(buffer, "r+") }
+
+    f = StringIO.new(buffer)
+    assert_raise(IOError) { f.write("x") }
+    assert_equal("foo\n", f.gets)
+    assert_equal(["b"], f.chars(1))
+    assert_raise(IOError) { f.ungetc("x") }
+    assert_raise(IOError) { f.ungetbyte(0x78) }
+    assert_equal("foo\nbar\n", f.string)
+    assert_predicate(f.string, :frozen?)
+    assert_equal("ar\n", f.gets)
+  end
+
+  def test_byte_buffer_chars
+    buffer = direct_buffer("a\u3042b\u3044")
+    f = StringIO.new(buffer, "r+:UTF-8")
+    assert_equal(["a", "\u3042", "b", "\u3044"], f.each_char.to_a)
+    f.rewind
+    assert_equal([0x61, 0x3042, 0x62, 0x3044], f.each_codepoint.to_a)
+    f.rewind
+    assert_equal(["a", "\u3042"], f.chars(2))
+    assert_equal([0x62, 0x3044], f.codepoints)
+
+    # pushed back in place, over the bytes in front of the position
+    f.pos = 4
+    f.ungetc("\u3044")
+    assert_equal(1, f.pos)
+    f.ungetbyte(0x41)
+    assert_equal(0, f.pos)
+    assert_equal("A\u3044b\u3044".b, String.from_java_bytes(read_buffer(buffer)))
+    assert_equal("A\u3044b\u3044", f.read)
+
+    f = StringIO.new(direct_buffer("\uFEFFabc"), "r:BOM|UTF-8")
+    assert_equal(Encoding::UTF_8, f.external_encoding)
+    assert_equal("abc", f.read)
+  end
+
+  def test_byte_buffer_write
+    buffer = java.nio.ByteBuffer.allocateDirect(8)
+    f = StringIO.new(buffer, "w")
+    assert_equal(0, f.size)
+    f.write("abc")
+    f.print("de", "f")
+    f.pos = 7
+    f.write("g")
+    assert_equal(8, f.size)
+    assert_equal("abcdef\0g".b, String.from_java_bytes(read_buffer(buffer)))
+
+    f.rewind
+    f.write("ABC")
+    assert_equal("ABCdef\0g".b, String.from_java_bytes(read_buffer(buffer)))
+    f.pos = 8
+    f.write("more")
+    assert_equal("ABCdef\0gmore", f.string)
+    assert_equal("ABCdef\0g".b, String.from_java_bytes(read_buffer(buffer)))
+
+    f = StringIO.new(java.nio.ByteBuffer.wrap("0123456789".to_java_bytes), "r+:BINARY")
+    f.gets("4")
+    f.write("x" * 5)
+    assert_equal("01234xxxxx", f.string)
+  end
+
+  def test_map
+    Tempfile.create("stringio") do |file|
+      file.binmode
+      file.write("foo\nbar\n\u3042\nbaz")
+      file.close
+
+      f = StringIO.map(file.path)
+      assert_equal(Encoding.default_external, f.external_encoding)
+      assert_equal("foo\n", f.gets)
+      assert_equal("bar", f.pread(3, 4))
+      f.seek(-3, IO::SEEK_END)
+      assert_equal("baz", f.read)
+      f.rewind
+      assert_equal(["foo", "bar", "\u3042", "baz"], f.each_line(chomp: true).to_a)
+      assert_raise(IOError) { f.write("x") }
+
+      StringIO.map(file.path, "r+:BINARY") do |w|
+        assert_equal(Encoding::BINARY, w.external_encoding)
+        w.write("FOO")
+        w.pos = w.size
+        w.write("!")
+        w.truncate(w.size + 2)
+        assert_equal("FOO\nbar\n\u3042\nbaz!\0\0".b, w.string)
+      end
+      assert_equal("FOO\nbar\n\u3042\nbaz!\0\0".b, File.binread(file.path))
+
+      StringIO.map(file.path, "w") do |w|
+        assert_equal(0, w.size)
+        w.write("foo")
+        w.write("bar" * 1000)
+      end
+      assert_equal("foo" + "bar" * 1000, File.binread(file.path))
+
+      StringIO.map(file.path, "w+") do |w|
+        1000.times { w.write("x") }
+        assert_operator(File.size(file.path), :>=, 1000)
+        w.truncate(10)
+        assert_equal(10, File.size(file.path))
+        c = w.cursor
+        w.truncate(3)
+        assert_equal(10, File.size(file.path))
+        assert_equal("x" * 10, c.read)
+      end
+      assert_equal(10, File.size(file.path))
+
+      w = StringIO.map(file.path, "w")
+      w.write("foo")
+      w.close
+      assert_equal("foo", File.binread(file.path))
+    end
+
+    assert_raise(Errno::ENOENT) { StringIO.map("/nonexistent/stringio") }
+  end
+
+  def test_map_large
+    omit "writes a 5 GB sparse file; set STRINGIO_LARGE_TESTS to run" unless ENV["STRINGIO_LARGE_TESTS"]
+    Tempfile.create("stringio") do |file|
+      size = 5 * 2**30
+      at = size - 2**31
+      file.close
+      # File#truncate takes an int length on JRuby
+      java.io.RandomAccessFile.new(file.path, "rw").tap {|raf| raf.setLength(size) }.close
+
+      StringIO.map(file.path, "r+:BINARY") do |f|
+        assert_equal(size, f.size)
+        f.pos = at
+        f.write("foo\nbar\n")
+        assert_equal(at + 8, f.pos)
+        f.seek(-8, IO::SEEK_CUR)
+        assert_equal(["foo\n", "bar\n"], [f.gets, f.gets])
+        assert_equal("bar", f.pread(3, at + 4))
+        f.seek(-1, IO::SEEK_END)
+        assert_equal("\0", f.read)
+        f.pos = at - 3
+        assert_equal("\0\0\0fo".b, f.gets("o"))
+        assert_equal(at + 2, f.pos)
+        assert_raise(IOError) { f.string }
+        f.pos = at
+        assert_equal(["f", "o"], f.each_char.first(2))
+        f.pos = at + 1
+        f.ungetc("F")
+        assert_equal(["F", "o"], f.chars(2))
+      end
+      File.open(file.path, "rb") do |io|
+        io.seek(at)
+        assert_equal("Foo\nbar\n", io.read(8))
+      end
+    end
+  end
+
+  def test_truncate_byte_buffer
+    buffer = java.nio.ByteBuffer.allocate(8)
+    f = StringIO.new(buffer, "r+")
+    f.write("abcdef")
+    f.truncate(3)
+    assert_equal(3, f.size)
+    f.truncate(5)
+    f.rewind
+    assert_equal("abc\0\0", f.read)
+    f.truncate(10)
+    assert_equal("abc\0\0\0\0\0\0\0", f.string)
+  end
+
+  def test_copy_to
+    f = StringIO.new("hello world")
+    f.pos = 3
+    Tempfile.create("stringio") do |file|
+      assert_equal(11, f.copy_to(file.path))
+      assert_equal("hello world", File.binread(file.path))
+      assert_equal(5, f.copy_to(file.path, length: 5))
+      assert_equal("hello", File.binread(file.path))
+
+      File.open(file.path, "w") do |io|
+        io.write("<")
+        assert_equal(5, f.copy_to(io, offset: 6, length: 10))
+        io.write(">")
+      end
+      assert_equal("<world>", File.binread(file.path))
+    end
+    assert_equal(3, f.pos)
+
+    out = StringIO.new
+    assert_equal(0, f.copy_to(out, offset: 11))
+    assert_equal(6, f.copy_to(out, offset: 5))
+    assert_equal(" world", out.string)
+    assert_raise(ArgumentError) { f.copy_to(out, offset: -1) }
+    assert_raise(ArgumentError) { f.copy_to(out, length: -1) }
+    assert_raise(TypeError) { f.copy_to(Object.new) }
+    assert_raise(IOError) { StringIO.new(+"", "w").copy_to(out) }
+  end
+
+  def test_copy_to_byte_buffer
+    f = StringIO.new(direct_buffer("foo bar baz", 4))
+    r, w = IO.pipe
+    assert_equal(3, f.copy_to(w, offset: 4))
+    w.close
+    assert_equal("baz", r.read)
+  end
+
+  def test_write_to
+    f = StringIO.new("hello world")
+    out = StringIO.new
+    assert_equal(5, f.write_to(out, 5))
+    assert_equal(5, f.pos)
+    assert_equal(6, f.write_to(out))
+    assert_equal(11, f.pos)
+    assert_equal(0, f.write_to(out))
+    assert_equal("hello world", out.string)
+    assert_raise(ArgumentError) { f.write_to(out, -1) }
+
+    r, w = IO.pipe
+    f.rewind
+    assert_equal(11, f.write_to(w))
+    w.close
+    assert_equal("hello world", r.read)
+
+    # IO.copy_stream is left as it is and reads through read
+    assert_equal(IO.singleton_class, IO.method(:copy_stream).owner)
+    f.rewind
+    out = StringIO.new
+    assert_equal(11, IO.copy_stream(f, out))
+    assert_equal("hello world", out.string)
+  end
+
+  def test_copy_to_releases_lock
+    f = StringIO.new(+"hello")
+    out = +""
+    writer = nil
+    target = Object.new
+    target.define_singleton_method(:write) do |s|
+      writer = Thread.new { f.write("HELLO") }.join(5)
+      out << s
+    end
+    assert_equal(5, f.copy_to(target))
+    assert_not_nil(writer)
+    assert_equal(["hello", "HELLO"], [out, f.string])
+  end
+
+  def test_read_into
+    f = StringIO.new("hello world")
+    buffer = IO::Buffer.new(8)
+    assert_equal(8, f.read_into(buffer))
+    assert_equal("hello wo", buffer.get_string)
+    assert_equal(3, f.read_into(buffer, 4, 2))
+    assert_equal("herld wo", buffer.get_string)
+    assert_equal(11, f.pos)
+    assert_equal(0, f.read_into(buffer))
+
+    f = StringIO.new(direct_buffer("foo bar", 4))
+    assert_equal(3, f.read_into(buffer, 3, 5))
+    assert_equal("herldbar", buffer.get_string)
+
+    assert_raise(TypeError) { f.read_into("buffer") }
+    assert_raise(ArgumentError) { f.read_into(buffer, 8, 1) }
+    assert_raise(ArgumentError) { f.read_into(buffer, nil, -1) }
+    assert_raise(IOError) { StringIO.new(+"", "w").read_into(buffer) }
+  end
+
+  def test_write_from
+    buffer = IO::Buffer.for("abcdefgh")
+    f = StringIO.new(+"0123456789")
+    assert_equal(3, f.write_from(buffer, 3))
+    assert_equal(2, f.write_from(buffer, 2, 6))
+    assert_equal("abcgh56789", f.string)
+    assert_equal(5, f.pos)
+    f.pos = 12
+    assert_equal(8, f.write_from(buffer))
+    assert_equal("abcgh56789\0\0abcdefgh", f.string)
+
+    f = StringIO.new(+"xy", "a")
+    f.write_from(buffer, 1, 7)
+    assert_equal("xyh", f.string)
+
+    f = StringIO.new(java.nio.ByteBuffer.allocate(4), "r+")
+    assert_equal(4, f.write_from(buffer, 4))
+    assert_equal(2, f.write_from(buffer, 2, 4))
+    assert_equal("abcdef", f.string)
+
+    assert_raise(IOError) { StringIO.new("frozen").write_from(buffer) }
+    assert_raise(IOError) { StringIO.new(+"", "r").write_from(buffer) }
+  end
+
+  def test_cursor
+    f = StringIO.new(+"foo\nbar\nbaz\n")
+    f.gets
+    c = f.cursor
+    assert_equal([0, 0], [c.pos, c.lineno])
+    assert_equal("foo\n", c.gets)
+    assert_equal([4, 1], [f.pos, f.lineno])
+    assert_equal(1, c.lineno)
+
+    f.write("BAR")
+    assert_equal("bar\n", c.gets)
+    assert_equal("foo\nBAR\nbaz\n", f.string)
+    assert_raise(IOError) { c.write("x") }
+    assert_raise(IOError) { StringIO.new(+"", "w").cursor }
+
+    f = StringIO.new(direct_buffer("foo\nbar\n"))
+    assert_equal(["foo\n", "bar\n"], f.cursor.readlines)
+    assert_equal("foo\n", f.gets)
+  end
+
+  def test_cursor_ignores_later_appends
+    f = StringIO.new
+    f.write("foo\n")
+    c = f.cursor
+    f.write("bar\n")
+    assert_equal("foo\n", c.read)
+    assert_equal("foo\nbar\n", f.string)
+  end
+
+  def test_cursor_threads
+    f = StringIO.new((1..10000).map {|i| "line #{i}\n"}.join)
+    counts = 4.times.map { Thread.new { f.cursor.readlines.size } }.map(&:value)
+    assert_equal([10000] * 4, counts)
+    assert_equal(0, f.pos)
+  end
+
+  def test_each_line_parallel
+    src = (1..100000).map {|i| "line #{i}\r\n"}.join
+    f = StringIO.new(src)
+    f.gets
+    lines = Queue.new
+    assert_same(f, f.each_line_parallel(parallelism: 3) {|l| lines << l})
+    assert_equal(src.lines.drop(1).sort, Array.new(lines.size) { lines.pop }.sort)
+    assert_equal([src.bytesize, 100000], [f.pos, f.lineno])
+
+    assert_raise(LocalJumpError) { f.each_line_parallel }
+    assert_raise(ArgumentError) { f.each_line_parallel(parallelism: 0) {} }
+  end
+
+  def test_map_lines_parallel
+    src = (1..100000).map {|i| "line #{i}\r\n"}.join
+    f = StringIO.new(src)
+    assert_equal(src.lines(chomp: true), f.map_lines_parallel(chomp: true, parallelism: 3) {|l| l})
+    f.rewind
+    assert_equal(src.lines("\r\n").sort, f.map_lines_parallel("\r\n", ordered: false) {|l| l}.sort)
+    f.rewind
+    assert_equal([src.bytesize], f.map_lines_parallel(nil) {|l| l.bytesize})
+    assert_equal([], f.map_lines_parallel {|l| l})
+
+    assert_equal(["a\n\n\n", "b\nc\n\n"], StringIO.new("a\n\n\nb\nc\n\n").map_lines_parallel("") {|l| l})
+    assert_equal(src.lines, StringIO.new(direct_buffer(src)).map_lines_parallel(parallelism: 2) {|l| l.force_encoding(Encoding::UTF_8)})
+  end
+
+  def test_reduce_lines_parallel
+    src = (1..100000).map {|i| "#{i}\n"}.join
+    f = StringIO.new(src)
+    assert_equal(5000050000, f.reduce_lines_parallel(0, parallelism: 3) {|sum, l| sum + l.to_i})
+    f.rewind
+    assert_equal(src.lines, f.reduce_lines_parallel([], combine: ->(a, b) { a + b }) {|acc, l| acc << l})
+    assert_equal(:init, f.reduce_lines_parallel(:init) {|acc, l| acc})
+  end
+
+  def test_each_line_parallel_raises
+    f = StringIO.new((1..100000).map {|i| "line #{i}\n"}.join)
+    e = assert_raise(RuntimeError) { f.each_line_parallel(parallelism: 4) {|l| raise "at #{l}" if l.end_with?("0000\n")} }
+    assert_match(/\Aat line \d+0000\n\z/, e.message)
+    assert_equal(0, f.pos)
+  end
+
+  def test_each_line_parallel_rejects_break
+    f = StringIO.new((1..100000).map {|i| "line #{i}\n"}.join)
+    assert_raise(LocalJumpError) { f.each_line_parallel(parallelism: 2) { break } }
+    assert_equal(0, f.pos)
+  end
+
+  def test_each_line_parallel_repositioned
+    f = StringIO.new(+"a\nb\nc\n")
+    f.gets
+    assert_raise(ConcurrencyError) { f.each_line_parallel { f.rewind } }
+    assert_equal([0, 0], [f.pos, f.lineno])
+  end
+
+  def test_each_line_parallel_interrupted
+    f = StringIO.new((1..100000).map {|i| "line #{i}\n"}.join)
+    lines = 0
+    t = Thread.new do
+      Thread.current.report_on_exception = false
+      f.each_line_parallel(parallelism: 2) { lines += 1; sleep 0.01 }
+    end
+    sleep 0.1 until lines > 0
+    t.raise(RuntimeError, "stop")
+    assert_raise(RuntimeError) { t.join(5) }
+    stopped = lines
+    sleep 0.1
+    assert_operator(lines, :<=, stopped + 2)
+  end
+
+  def test_snapshot
+    f = StringIO.new(String.new("hello world", capacity: 100))
+    snap = f.snapshot
+    assert_predicate(snap, :frozen?)
+    f.seek(0, IO::SEEK_END)
+    f.write(" more")
+    assert_equal("hello world", snap)
+
+    f.rewind
+    f.write("HE")
+    assert_equal(["hello world", "HEllo world more"], [snap, f.string])
+
+    snap = f.snapshot
+    f.truncate(3)
+    f.write("xyz")
+    assert_equal(["HEllo world more", "HExyz"], [snap, f.string])
+
+    snap = f.snapshot
+    f.ungetbyte("Q")
+    assert_equal(["HExyz", "HExyQ"], [snap, f.string])
+
+    snap = f.snapshot
+    f.pos = 2
+    f.ungetc("Z")
+    assert_equal(["HExyQ", "HZxyQ"], [snap, f.string])
+
+    assert_equal("buf", StringIO.new(direct_buffer("buf")).snapshot)
+  end
+
+  def test_stats
+    enabled = StringIO.stats_enabled?
+    StringIO.stats_enabled = true
+    StringIO.reset_stats
+    f = StringIO.new(+"")
+    100.times {|i| f.write("line #{i}\n")}
+    f.rewind
+    f.gets
+    f.read(10)
+    stats = StringIO.stats
+    assert_equal([100, 790, 1, 1], stats.values_at(:write_calls, :bytes_written, :gets_calls, :read_calls))
+    assert_equal(17, stats[:bytes_read])
+    assert_operator(stats[:reallocations], :>, 0)
+    assert_operator(stats[:lock_acquisitions], :>=, 102)
+    assert_operator(stats[:live_bytes], :>=, 790)
+    f.string = +""
+    assert_operator(StringIO.stats[:live_bytes], :<=, stats[:live_bytes] - 790)
+
+    name = "org.jruby.ext.stringio:type=StringIOStats,runtime=#{JRuby.runtime.runtime_number}"
+    server = java.lang.management.ManagementFactory.platform_mbean_server
+    assert_equal(100, server.get_attribute(javax.management.ObjectName.new(name), "WriteCalls"))
+
+    StringIO.stats_enabled = false
+    f.write("more")
+    assert_equal(100, StringIO.stats[:write_calls])
+  ensure
+    StringIO.stats_enabled = enabled
+  end
+
+  def test_flight_recorder_events
+    omit "no Flight Recorder" unless (Java::JdkJfr::Recording rescue nil)
+
+    recording = Java::JdkJfr::Recording.new
+    recording.enable("org.jruby.ext.stringio.LargeOperation")
+    recording.start
+    f = StringIO.new(+"")
+    f.write(("x" * 1023 + "\n") * 8192)
+    f.rewind
+    f.readlines
+    f.rewind
+    f.ungetbyte("y")
+    recording.stop
+
+    Tempfile.create(["stringio", ".jfr"]) do |file|
+      path = java.nio.file.Paths.get(file.path)
+      recording.dump(path)
+      events = Java::JdkJfrConsumer::RecordingFile.read_all_events(path).select do |event|
+        event.event_type.name == "org.jruby.ext.stringio.LargeOperation"
+      end
+      assert_equal([["write", 8 << 20], ["readlines", 8 << 20], ["ungetbyte", (8 << 20) + 1]],
+                   events.map {|event| [event.get_string("operation"), event.get_long("bytes")]})
+    end
+  ensure
+    recording&.close
+  end
+
+  def test_flight_recorder_lock_wait
+    omit "no Flight Recorder" unless (Java::JdkJfr::Recording rescue nil)
+
+    recording = Java::JdkJfr::Recording.new
+    recording.enable("org.jruby.ext.stringio.LockWait").with_threshold(java.time.Duration::ZERO)
+    recording.start
+    f = StringIO.new(+"a\nb\n")
+    holder = Thread.new { f.each_line { sleep 0.2 } }
+    sleep 0.1
+    Thread.new { f.write("c") }.join
+    holder.join
+    recording.stop
+
+    Tempfile.create(["stringio", ".jfr"]) do |file|
+      path = java.nio.file.Paths.get(file.path)
+      recording.dump(path)
+      events = Java::JdkJfrConsumer::RecordingFile.read_all_events(path).select do |event|
+        event.event_type.name == "org.jruby.ext.stringio.LockWait"
+      end
+      assert_equal([["write", 4]], events.map {|event| [event.get_string("operation"), event.get_long("bytes")]})
+    end
+  ensure
+    recording&.close
+  end
+
+  def test_ungetc_at_start_keeps_room
+    f = StringIO.new(+"abcdef")
+    f.read(2)
+    f.ungetc("XYZ")
+    assert_equal(["XYZcdef", 0], [f.string, f.pos])
+    f.ungetbyte(0x41)
+    f.ungetc("\u00e9")
+    assert_equal("\u00e9AXYZcdef", f.string)
+    f.write("Q")
+    assert_equal(["Q\xA9AXYZcdef".b, 1], [f.string.b, f.pos])
+
+    f = StringIO.new("x" * (16 << 20))
+    snapshot = f.snapshot
+    100_000.times { f.ungetbyte(0x41) }
+    assert_equal((16 << 20) + 100_000, f.size)
+    assert_equal("A" * 100_000 + "x", f.read(100_001))
+    assert_equal(16 << 20, snapshot.size)
+  end
+
+  def test_lock_waiter_raised
+    f = StringIO.new(+"a\nb\n")
+    holder = Thread.new { f.each_line { sleep 0.5 } }
+    sleep 0.1
+    first = Thread.new { Thread.current.report_on_exception = false; f.gets }
+    sleep 0.1
+    second = Thread.new { f.write("x") }
+    sleep 0.1
+    first.raise(RuntimeError, "stop")
+    assert_raise(RuntimeError) { first.join }
+    holder.join
+    assert_not_nil(second.join(5))
+  end
+
+  private
+
+  def direct_buffer(string, position = 0)
+    bytes = string.b.to_java_bytes
+    buffer = java.nio.ByteBuffer.allocateDirect(bytes.length)
+    buffer.put(bytes)
+    buffer.position(position)
+    buffer
+  end
+
+  def read_buffer(buffer)
+    bytes = Java::byte[buffer.capacity].new
+    buffer.duplicate.clear.get(bytes)
+    bytes
+  end
+end